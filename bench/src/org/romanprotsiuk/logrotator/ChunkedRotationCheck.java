@@ -0,0 +1,121 @@
+package org.romanprotsiuk.logrotator;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Level;
+
+/**
+ * Regression check: rotating chunked must give the same outputs as
+ * rotating whole. A single input must come out byte for byte the same.
+ * With several inputs in one job, entries of different inputs sharing an
+ * output may land in any order, so every output must have the same length
+ * and the same lines. Writers are never evicted from the pool, so a chunk
+ * whose outputs are stitched while other chunks still use the pool must
+ * have closed its own. Exits with 1 on a difference.
+ * <p>
+ * Run it with the bench classpath:
+ * <code>java -cp target/benchmarks.jar org.romanprotsiuk.logrotator.ChunkedRotationCheck</code>
+ */
+public class ChunkedRotationCheck {
+
+	private static final long CHUNK_SIZE = LogChunks.MIN_CHUNK_SIZE;
+	// more than there are outputs, so that pooled writers are only closed by their users
+	private static final int MAX_OPEN_WRITERS = 100000;
+
+	public static void main(String[] args) throws Exception {
+		LogRotator.logger.setLevel(Level.WARN);
+		File folder = File.createTempFile("logrotator-check", "");
+		folder.delete();
+		try {
+			File single = new File(folder, "single");
+			File multi = new File(folder, "multi");
+			single.mkdirs();
+			multi.mkdirs();
+			new LogGenerator(42, 0.3).write(new File(single, "webapp.log"), 30000);
+			new LogGenerator(43, 0.3).write(new File(multi, "webapp1.log"), 100000);
+			new LogGenerator(44, 0.3).write(new File(multi, "webapp2.log"), 20000);
+
+			boolean ok = true;
+			for (boolean errors : new boolean[] { false, true }) {
+				ok &= check(single, new File(folder, "out"), errors, true);
+				ok &= check(multi, new File(folder, "out"), errors, false);
+			}
+			System.out.println(ok ? "OK" : "FAILED");
+			if (!ok)
+				System.exit(1);
+		} finally {
+			HotPathBenchmark.delete(folder);
+		}
+	}
+
+	private static boolean check(File input, File output, boolean errors, boolean exact) throws Exception {
+		File whole = new File(output, "whole");
+		File chunked = new File(output, "chunked");
+		HotPathBenchmark.delete(output);
+		rotate(input, whole, errors, 0);
+		rotate(input, chunked, errors, CHUNK_SIZE);
+
+		String name = input.getName() + (errors ? ", errors" : ", dates");
+		TreeMap<String, File> expected = files(whole);
+		TreeMap<String, File> actual = files(chunked);
+		if (!expected.keySet().equals(actual.keySet())) {
+			System.out.println(name + ": outputs differ, " + expected.keySet() + " vs " + actual.keySet());
+			return false;
+		}
+		for (String path : expected.keySet()) {
+			File e = expected.get(path);
+			File a = actual.get(path);
+			boolean same = exact ? Arrays.equals(Files.readAllBytes(e.toPath()), Files.readAllBytes(a.toPath()))
+					: e.length() == a.length() && sortedLines(e).equals(sortedLines(a));
+			if (!same) {
+				System.out.println(name + ": " + path + " differs, " + e.length() + " vs " + a.length() + " bytes");
+				return false;
+			}
+		}
+		System.out.println(name + ": " + expected.size() + " outputs match");
+		return true;
+	}
+
+	private static void rotate(File input, File output, boolean errors, long chunkSize) throws Exception {
+		output.mkdirs();
+		LogRotator rotator = errors ? new LogRotator(Arrays.asList(Properties.errorPattern()))
+				: new LogRotator(null, Properties.IGNORE_LIST);
+		rotator.setSplitByError(errors);
+		rotator.setChunkSize(chunkSize);
+		rotator.setMaxOpenWriters(MAX_OPEN_WRITERS);
+		ExecutorService executor = rotator.rotate(input.getPath(), output.getPath());
+		executor.shutdown();
+		executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+	}
+
+	private static TreeMap<String, File> files(File folder) {
+		TreeMap<String, File> files = new TreeMap<String, File>();
+		collect(folder, "", files);
+		return files;
+	}
+
+	private static void collect(File dir, String prefix, TreeMap<String, File> files) {
+		for (File f : dir.listFiles()) {
+			if (f.isDirectory())
+				collect(f, prefix + f.getName() + "/", files);
+			else
+				files.put(prefix + f.getName(), f);
+		}
+	}
+
+	private static List<String> sortedLines(File f) throws IOException {
+		List<String> lines = new ArrayList<String>(Files.readAllLines(f.toPath(), StandardCharsets.ISO_8859_1));
+		Collections.sort(lines);
+		return lines;
+	}
+}
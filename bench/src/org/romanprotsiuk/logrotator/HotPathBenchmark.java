@@ -0,0 +1,154 @@
+package org.romanprotsiuk.logrotator;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.Level;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Per-line and per-entry costs of the rotation hot paths, over a generated
+ * corpus cycled one line or entry per invocation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HotPathBenchmark {
+
+	private static final int CORPUS_SIZE = 4096;
+
+	@Param({ "0.05", "0.3", "0.8" })
+	public double stackDensity;
+
+	private String[] entries;
+	private String[] lines;
+	private int entryIdx = 0;
+	private int lineIdx = 0;
+
+	private RotateWriter writer;
+	private RotateWriter errorWriter;
+	private WriterPool writers;
+	private LogConditions ignoreConditions;
+	private LogConditions dupConditions;
+	private File outputFolder;
+
+	@Setup
+	public void setUp() throws IOException {
+		LogRotator.logger.setLevel(Level.WARN);
+		LogGenerator generator = new LogGenerator(42, stackDensity);
+		entries = new String[CORPUS_SIZE];
+		List<String> all = new ArrayList<String>();
+		for (int i = 0; i < entries.length; i++) {
+			entries[i] = generator.nextEntry();
+			for (String line : entries[i].split(Properties.NL))
+				all.add(line);
+		}
+		lines = all.toArray(new String[all.size()]);
+
+		ignoreConditions = new LogConditions(false, null, Properties.IGNORE_LIST);
+		dupConditions = new LogConditions(false, null, null, Properties.DUPLICATORS_LIST);
+		writer = new RotateWriter(ignoreConditions);
+
+		outputFolder = File.createTempFile("logrotator-bench", "");
+		outputFolder.delete();
+		outputFolder.mkdirs();
+		writers = new WriterPool();
+		errorWriter = new RotateWriter(ignoreConditions, null, writers);
+	}
+
+	@TearDown
+	public void tearDown() {
+		errorWriter.close();
+		delete(outputFolder);
+	}
+
+	static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null)
+			for (File child : children)
+				delete(child);
+		file.delete();
+	}
+
+	private String nextEntry() {
+		entryIdx = (entryIdx + 1) % entries.length;
+		return entries[entryIdx];
+	}
+
+	private String nextLine() {
+		lineIdx = (lineIdx + 1) % lines.length;
+		return lines[lineIdx];
+	}
+
+	@Benchmark
+	public boolean isLogStart() {
+		return writer.isLogStart(nextLine());
+	}
+
+	/**
+	 * What {@link #isLogStart()} did before the prefix check, the baseline
+	 * for it on the same lines.
+	 */
+	@Benchmark
+	public boolean isLogStartRegex() {
+		return Properties.LOG.matcher(nextLine()).find();
+	}
+
+	@Benchmark
+	public String filter() {
+		return ignoreConditions.filter(nextEntry());
+	}
+
+	@Benchmark
+	public boolean accept() {
+		return ignoreConditions.accept(nextEntry());
+	}
+
+	@Benchmark
+	public boolean isDuplicate() {
+		String previous = entries[entryIdx];
+		return dupConditions.isDuplicate(nextEntry(), previous);
+	}
+
+	@Benchmark
+	public Object extractMethodId() {
+		return writer.extractMethodId(nextEntry());
+	}
+
+	@Benchmark
+	public String switchFile() throws IOException {
+		errorWriter.nextStep();
+		errorWriter.addLine(nextEntry(), false);
+		errorWriter.switchFile(outputFolder.getPath());
+		return errorWriter.getLines();
+	}
+
+	@Benchmark
+	public Pattern logPattern() {
+		return Properties.logPattern(new HashMap<String, String>());
+	}
+
+	@Benchmark
+	public Pattern anyPattern() {
+		return Properties.anyPattern(Properties.PATTERNS.get("TRANSACTION_ERROR_PATTERN"));
+	}
+}
@@ -0,0 +1,157 @@
+package org.romanprotsiuk.logrotator;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.regex.Matcher;
+
+/**
+ * Synthetic log corpus for benchmarks. Entry lines are composed part by
+ * part in <code>LOG_ENTRY_COMPOSITION</code> order, and every first line is
+ * checked against <code>Properties.LOG</code>, so the corpus follows the
+ * configured format. The same seed always gives the same corpus.
+ * <p>
+ * <code>stackDensity</code> is the share of ERROR/FATAL entries with an
+ * exception and a stack trace; the rest are one-line entries, some of them
+ * from <code>IGNORE_LIST</code> services.
+ */
+public class LogGenerator {
+
+	private static final String[] SEVERITIES = { "DEBUG", "INFO", "WARN" };
+	private static final String[] ERROR_SEVERITIES = { "ERROR", "FATAL" };
+	private static final String[] THREADS = { "main", "http-8080-", "pool-1-thread-" };
+	private static final String[] SERVICES = { "Payment", "User", "Order", "Report" };
+	private static final String[][] PLAIN_METHODS = { { "doThis", "AnnoyingService" },
+			{ "andThatToo", "AnnoyingService" }, { "doSmth", "UnimportantService" }, { "run", "Worker" },
+			{ "handle", "RequestDispatcher" }, { "load", "CacheManager" } };
+
+	public LogGenerator(long seed, double stackDensity) {
+		this.random = new Random(seed);
+		this.stackDensity = stackDensity;
+		this.dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+	}
+
+	private Random random;
+	private double stackDensity;
+	// 2012-03-01 00:00:00,000 UTC
+	private long time = 1330560000000L;
+	private SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss,SSS ");
+	private Matcher logMatcher = Properties.LOG.matcher("");
+	private StringBuilder b = new StringBuilder();
+
+	/**
+	 * Next entry, every line followed by <code>Properties.NL</code>.
+	 */
+	public String nextEntry() {
+		b.setLength(0);
+		time += random.nextInt(20000);
+		if (random.nextDouble() < stackDensity)
+			stackEntry();
+		else
+			plainEntry();
+		return b.toString();
+	}
+
+	public void write(File file, int entries) throws IOException {
+		Writer w = new BufferedWriter(new FileWriter(file));
+		try {
+			for (int i = 0; i < entries; i++)
+				w.write(nextEntry());
+		} finally {
+			w.close();
+		}
+	}
+
+	private void plainEntry() {
+		String[] m = pick(PLAIN_METHODS);
+		firstLine(pick(SEVERITIES), m[0], m[1], 1 + random.nextInt(400), "message " + random.nextInt(100000));
+	}
+
+	private void stackEntry() {
+		String severity = pick(ERROR_SEVERITIES);
+		String service = pick(SERVICES) + "Service";
+		int kind = random.nextInt(4);
+		if (kind == 0) {
+			firstLine(severity, "executeTransactionBatch", "BatchGateway", 120, "Error");
+			line("com.company.DataException: Row " + random.nextInt(20) + " failed");
+		} else if (kind == 1) {
+			firstLine(severity, "invoke", "AbstractBatchGateway", 87, "java.lang.reflect.InvocationTargetException");
+			line("java.lang.reflect.InvocationTargetException");
+		} else if (kind == 2) {
+			firstLine(severity, "<init>", "DAOException", 21, "Duplicate entry '" + random.nextInt(50) + "' for key 1");
+			line("com.company.dao.DAOException: Duplicate entry");
+		} else {
+			firstLine(severity, "error", "Logger", 33, "Failure " + random.nextInt(30) + " in " + service);
+			line("java.lang.IllegalStateException: state " + random.nextInt(10));
+		}
+		int frames = 1 + random.nextInt(20);
+		for (int i = 0; i < frames; i++)
+			stackFrame(i == 0 ? service : pick(SERVICES) + "Service", i);
+		line("\tat javax.servlet.http.HttpServlet.service(HttpServlet.java:717)");
+		if (random.nextBoolean()) {
+			line("Caused by: java.sql.SQLException: Duplicate entry '" + random.nextInt(5) + "'");
+			stackFrame("SomeDAO", frames);
+		}
+	}
+
+	private void stackFrame(String className, int i) {
+		line("\tat com.company.svc." + className + ".method" + (i % 7) + "(" + className + ".java:" + (10 + i) + ")");
+	}
+
+	private void firstLine(String severity, String method, String className, int lineNo, String message) {
+		int start = b.length();
+		for (String part : Properties.LOG_ENTRY_COMPOSITION) {
+			if (part.equals("LOG_DATE_PART"))
+				b.append(dateFormat.format(new Date(time)));
+			else if (part.equals("SEVERITY_PART"))
+				b.append(String.format("%-5s", severity));
+			else if (part.equals("THREAD_NAME_PART"))
+				b.append(' ').append(thread()).append(' ');
+			else if (part.equals("METHOD_PART"))
+				b.append('(').append(method).append('@').append(className).append(".java:").append(lineNo).append(") - ");
+			else if (part.equals("MESSAGE_PART"))
+				b.append(message);
+			else
+				throw new RuntimeException("No sample for log part: " + part);
+		}
+		if (!logMatcher.reset(b).region(start, b.length()).find())
+			throw new RuntimeException("Generated line doesn't match LOG: " + b.substring(start));
+		b.append(Properties.NL);
+	}
+
+	private String thread() {
+		String t = pick(THREADS);
+		return t.endsWith("-") ? t + (1 + random.nextInt(8)) : t;
+	}
+
+	private void line(String line) {
+		b.append(line).append(Properties.NL);
+	}
+
+	private String pick(String[] values) {
+		return values[random.nextInt(values.length)];
+	}
+
+	private String[] pick(String[][] values) {
+		return values[random.nextInt(values.length)];
+	}
+
+	/**
+	 * Usage: <code>LogGenerator file entries [stackDensity] [seed]</code>
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.err.println("Usage: LogGenerator file entries [stackDensity] [seed]");
+			System.exit(1);
+		}
+		double stackDensity = args.length > 2 ? Double.parseDouble(args[2]) : 0.2;
+		long seed = args.length > 3 ? Long.parseLong(args[3]) : 1;
+		new LogGenerator(seed, stackDensity).write(new File(args[0]), Integer.parseInt(args[1]));
+	}
+}
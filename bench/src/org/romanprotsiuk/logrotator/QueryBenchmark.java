@@ -0,0 +1,89 @@
+package org.romanprotsiuk.logrotator;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.Level;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The same ad-hoc query, errors of one class, run over an entry store and
+ * by filtering the text log again.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class QueryBenchmark {
+
+	@Param({ "0.3" })
+	public double stackDensity;
+
+	@Param({ "50000" })
+	public int entries;
+
+	private File folder;
+	private File input;
+	private File store;
+	private File output;
+
+	@Setup
+	public void generate() throws IOException {
+		LogRotator.logger.setLevel(Level.WARN);
+		folder = File.createTempFile("logrotator-bench", "");
+		folder.delete();
+		folder.mkdirs();
+		input = new File(folder, "webapp.log");
+		new LogGenerator(42, stackDensity).write(input, entries);
+		store = new File(folder, "store");
+		store.mkdirs();
+		LogRotator rotator = new LogRotator();
+		rotator.setStoreOutput(true);
+		rotator.rotate(input, store.getPath());
+	}
+
+	@Setup(org.openjdk.jmh.annotations.Level.Invocation)
+	public void cleanOutput() {
+		output = new File(folder, "out");
+		HotPathBenchmark.delete(output);
+		output.mkdirs();
+	}
+
+	@TearDown
+	public void tearDown() {
+		HotPathBenchmark.delete(folder);
+	}
+
+	@Benchmark
+	public long queryStore() throws IOException {
+		EntryStore.Filter filter = new EntryStore.Filter();
+		filter.severities = new HashSet<String>(Arrays.asList("ERROR", "FATAL"));
+		filter.className = Pattern.compile("^Logger$");
+		return new LogRotator().query(store.getPath(), new File(output, "errors.log").getPath(), filter);
+	}
+
+	@Benchmark
+	public void filterText() throws IOException {
+		LogRotator rotator = new LogRotator(Arrays.asList(Properties.errorPattern(
+				"\\(([^\\)@]+)@(Logger)(?:\\.java)?:(\\d+)\\)\\s+-\\s+(.+)$")));
+		rotator.setSplitByError(false);
+		rotator.rotate(input, output.getPath());
+	}
+}
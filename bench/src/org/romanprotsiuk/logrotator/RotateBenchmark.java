@@ -0,0 +1,87 @@
+package org.romanprotsiuk.logrotator;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Level;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End-to-end single-threaded rotation of a generated log, by date and by
+ * error, for corpora with different stack trace density.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class RotateBenchmark {
+
+	@Param({ "0.05", "0.3", "0.8" })
+	public double stackDensity;
+
+	@Param({ "50000" })
+	public int entries;
+
+	private File folder;
+	private File input;
+	private File output;
+
+	@Setup
+	public void generate() throws IOException {
+		LogRotator.logger.setLevel(Level.WARN);
+		folder = File.createTempFile("logrotator-bench", "");
+		folder.delete();
+		folder.mkdirs();
+		input = new File(folder, "webapp.log");
+		new LogGenerator(42, stackDensity).write(input, entries);
+	}
+
+	@Setup(org.openjdk.jmh.annotations.Level.Invocation)
+	public void cleanOutput() {
+		output = new File(folder, "out");
+		HotPathBenchmark.delete(output);
+		output.mkdirs();
+	}
+
+	@TearDown
+	public void tearDown() {
+		HotPathBenchmark.delete(folder);
+	}
+
+	@Benchmark
+	public void rotateByDate() throws IOException {
+		LogRotator rotator = new LogRotator(null, Properties.IGNORE_LIST);
+		rotator.setSplitByError(false);
+		rotator.rotate(input, output.getPath());
+	}
+
+	@Benchmark
+	public void rotateByDateDecoded() throws IOException {
+		LogRotator rotator = new LogRotator(null, Properties.IGNORE_LIST);
+		rotator.setSplitByError(false);
+		rotator.setZeroCopy(false);
+		rotator.rotate(input, output.getPath());
+	}
+
+	@Benchmark
+	public void rotateByError() throws IOException {
+		LogRotator rotator = new LogRotator(Arrays.asList(Properties.errorPattern()));
+		rotator.setSplitByError(true);
+		rotator.rotate(input, output.getPath());
+	}
+}
@@ -0,0 +1,194 @@
+package org.romanprotsiuk.logrotator;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Transparent gzip support for inputs and outputs, chosen by the
+ * <code>.gz</code> file name suffix. Outputs are compressed block by block
+ * on a shared pool of daemon threads, every block becoming a separate gzip
+ * member, so parsing threads only copy bytes and write finished blocks.
+ * Concatenated members are a valid gzip file, which keeps appending (and
+ * stitching chunk outputs) working.
+ */
+class Compression {
+
+	public static final String GZ = ".gz";
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final int BLOCK_SIZE = 256 * 1024;
+	private static final int INITIAL_BLOCK_SIZE = 8 * 1024;
+
+	private static ExecutorService executor = null;
+
+	public static boolean isCompressed(File file) {
+		return isCompressed(file.getName());
+	}
+
+	public static boolean isCompressed(String fileName) {
+		return fileName.endsWith(GZ);
+	}
+
+	/**
+	 * File name without the compression suffix.
+	 */
+	public static String baseName(File file) {
+		String name = file.getName();
+		return isCompressed(name) ? name.substring(0, name.length() - GZ.length()) : name;
+	}
+
+	/**
+	 * Estimated uncompressed length, for progress reporting only: gzip
+	 * stores the length of the last member modulo 4 GB.
+	 */
+	public static long uncompressedLength(File file) throws IOException {
+		long length = file.length();
+		if (!isCompressed(file) || length < 4) return length;
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			raf.seek(length - 4);
+			long size = (raf.read() | raf.read() << 8 | raf.read() << 16 | (long) raf.read() << 24) & 0xffffffffL;
+			while (size < length)
+				size += 0x100000000L;
+			return size;
+		} finally {
+			raf.close();
+		}
+	}
+
+	public static InputStream open(File file) throws IOException {
+		InputStream is = new FileInputStream(file);
+		return isCompressed(file) ? new GZIPInputStream(is, BUFFER_SIZE) : new BufferedInputStream(is, BUFFER_SIZE);
+	}
+
+	public static OutputStream create(File file, boolean append) throws IOException {
+		OutputStream os = new FileOutputStream(file, append);
+		return isCompressed(file) ? new ParallelGzipOutputStream(os) : os;
+	}
+
+	private static synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			int threadsCount = Math.max(1, Runtime.getRuntime().availableProcessors());
+			executor = Executors.newFixedThreadPool(threadsCount, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "logrotator-gzip");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return executor;
+	}
+
+	static class ParallelGzipOutputStream extends OutputStream {
+
+		public ParallelGzipOutputStream(OutputStream out) {
+			this.out = out;
+			this.maxPending = 2 * Math.max(1, Runtime.getRuntime().availableProcessors());
+		}
+
+		private OutputStream out;
+		// grows up to BLOCK_SIZE, small per-error outputs never need a full block
+		private byte[] block = new byte[INITIAL_BLOCK_SIZE];
+		private int count = 0;
+		private LinkedList<Future<byte[]>> pending = new LinkedList<Future<byte[]>>();
+		private int maxPending;
+
+		@Override
+		public void write(int b) throws IOException {
+			ensureCapacity(1);
+			block[count++] = (byte) b;
+			if (count == BLOCK_SIZE)
+				submit();
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				int n = Math.min(len, BLOCK_SIZE - count);
+				ensureCapacity(n);
+				System.arraycopy(b, off, block, count, n);
+				count += n;
+				off += n;
+				len -= n;
+				if (count == BLOCK_SIZE)
+					submit();
+			}
+		}
+
+		private void ensureCapacity(int n) {
+			if (count + n <= block.length) return;
+			byte[] grown = new byte[Math.min(BLOCK_SIZE, Math.max(count + n, 2 * block.length))];
+			System.arraycopy(block, 0, grown, 0, count);
+			block = grown;
+		}
+
+		private void submit() throws IOException {
+			if (count == 0) return;
+			final byte[] data = block;
+			final int length = count;
+			block = new byte[data.length];
+			count = 0;
+			pending.add(getExecutor().submit(new Callable<byte[]>() {
+				@Override
+				public byte[] call() throws Exception {
+					return gzip(data, length);
+				}
+			}));
+			while (!pending.isEmpty() && (pending.size() > maxPending || pending.getFirst().isDone()))
+				writeFirst();
+		}
+
+		private void writeFirst() throws IOException {
+			try {
+				out.write(pending.removeFirst().get());
+			} catch (InterruptedException e) {
+				throw new IOException(e);
+			} catch (ExecutionException e) {
+				throw new IOException(e.getCause());
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			submit();
+			while (!pending.isEmpty())
+				writeFirst();
+			out.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				flush();
+			} finally {
+				out.close();
+			}
+		}
+
+		private static byte[] gzip(byte[] data, int length) throws IOException {
+			ByteArrayOutputStream bos = new ByteArrayOutputStream(length / 4);
+			GZIPOutputStream gz = new GZIPOutputStream(bos, BUFFER_SIZE);
+			gz.write(data, 0, length);
+			gz.close();
+			return bos.toByteArray();
+		}
+	}
+}
@@ -0,0 +1,287 @@
+package org.romanprotsiuk.logrotator;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import java.util.regex.Matcher;
+
+/**
+ * Splits a region of an uncompressed log by date on bytes. Lines are found
+ * in the raw bytes and only lines passing the shape check of
+ * {@link Properties#LOG_START} are decoded, which means entry first lines
+ * and not stack traces. Kept entries are collected into contiguous byte
+ * ranges. Ranges which outgrow the read buffer are copied to the per-date
+ * outputs with {@link FileChannel#transferTo}, without passing through the
+ * heap; short ones, e.g. between skipped entries, are gathered from the read
+ * buffer and written in blocks, which saves a system call per entry.
+ * <p>
+ * Gives the same outputs as rotating by date through
+ * {@link RotateWriter}, for conditions judging entries by their first line
+ * only, except that line ends are copied as they are instead of being
+ * replaced with the platform's.
+ */
+class DateSplitter {
+
+	private static final int BUFFER_SIZE = 1024 * 1024;
+	private static final int STAGE_SIZE = 64 * 1024;
+
+	public DateSplitter(LogConditions conditions, String fileNameBase, RotationMetrics metrics,
+			RotationMetrics.FileProgress progress) {
+		this.conditions = conditions;
+		this.fileNameBase = fileNameBase;
+		this.metrics = metrics;
+		this.progress = progress;
+	}
+
+	private LogConditions conditions;
+	private String fileNameBase;
+	private RotationMetrics metrics;
+	private RotationMetrics.FileProgress progress;
+	private Matcher logMatcher = Properties.LOG.matcher("");
+	private ByteChars view = new ByteChars();
+	private RotationJob job = null;
+
+	private FileChannel in;
+	private String outputFolder;
+	private FileChannel out = null;
+	private String date = null;
+
+	private byte[] buffer = new byte[BUFFER_SIZE];
+	// input offset of buffer[0]
+	private long pos;
+	// short ranges are gathered here rather than transferred one by one
+	private ByteBuffer staged = ByteBuffer.allocate(STAGE_SIZE);
+
+	private long entryStart;
+	private String firstLine = null;
+	private String firstDate = null;
+	private long rangeStart = -1;
+	private long rangeEnd = -1;
+
+	/**
+	 * Latin-1 view of a line, enough for the shape check.
+	 */
+	private static class ByteChars implements CharSequence {
+		private byte[] bytes;
+		private int from;
+		private int to;
+
+		public ByteChars set(byte[] bytes, int from, int to) {
+			this.bytes = bytes;
+			this.from = from;
+			this.to = to;
+			return this;
+		}
+
+		@Override
+		public int length() {
+			return to - from;
+		}
+
+		@Override
+		public char charAt(int index) {
+			return (char) (bytes[from + index] & 0xff);
+		}
+
+		@Override
+		public CharSequence subSequence(int start, int end) {
+			return new String(bytes, from + start, end - start);
+		}
+
+		@Override
+		public String toString() {
+			return new String(bytes, from, to - from);
+		}
+	}
+
+	/**
+	 * Stops splitting at the next entry once <code>job</code> is cancelled.
+	 */
+	public void setJob(RotationJob job) {
+		this.job = job;
+	}
+
+	public void split(FileChannel in, long start, long end, String outputFolder) throws IOException {
+		this.in = in;
+		this.outputFolder = outputFolder;
+		this.entryStart = start;
+		this.pos = start;
+
+		int filled = 0;
+		int scan = 0;
+		int lineStart = 0;
+		boolean eof = false;
+		byte last = '\n';
+		while (true) {
+			int nl = -1;
+			for (int i = scan; i < filled; i++)
+				if (buffer[i] == '\n') {
+					nl = i;
+					break;
+				}
+			if (nl >= 0) {
+				line(lineStart, nl, pos + lineStart);
+				lineStart = scan = nl + 1;
+				continue;
+			}
+			if (eof) {
+				if (lineStart < filled)
+					line(lineStart, filled, pos + lineStart);
+				break;
+			}
+			// keeps the pending range in the buffer, unless it's big enough to be transferred
+			int keep = lineStart;
+			long from = rangeStart >= 0 ? rangeStart : entryStart;
+			if (from >= pos && lineStart - (from - pos) <= buffer.length / 2)
+				keep = (int) (from - pos);
+			if (keep > 0) {
+				System.arraycopy(buffer, keep, buffer, 0, filled - keep);
+				pos += keep;
+				filled -= keep;
+				lineStart -= keep;
+			}
+			scan = filled;
+			if (filled == buffer.length)
+				buffer = Arrays.copyOf(buffer, 2 * buffer.length);
+			int n = (int) Math.min(buffer.length - filled, end - pos - filled);
+			n = n > 0 ? in.read(ByteBuffer.wrap(buffer, filled, n), pos + filled) : -1;
+			if (n > 0) {
+				filled += n;
+				last = buffer[filled - 1];
+				metrics.bytesRead(progress, n);
+			} else
+				eof = true;
+		}
+		completeEntry(end);
+		// lines read as text always end with a line separator
+		boolean lastKept = rangeStart >= 0 && rangeEnd == end;
+		flush();
+		if (lastKept && last != '\n') {
+			byte[] nl = Properties.NL.getBytes();
+			stage(nl, 0, nl.length);
+		}
+	}
+
+	private void line(int from, int to, long offset) throws IOException {
+		if (offset != entryStart && !Properties.LOG_START.mayStart(view.set(buffer, from, to)))
+			return;
+		int length = to - from;
+		if (length > 0 && buffer[to - 1] == '\r')
+			length--;
+		String line = new String(buffer, from, length);
+		if (offset == entryStart) {
+			firstLine = line;
+			firstDate = logMatcher.reset(line).find() ? logMatcher.group(1) : null;
+		} else if (Properties.LOG_START.isLogStart(line, logMatcher)) {
+			completeEntry(offset);
+			entryStart = offset;
+			firstLine = line;
+			// the matcher is left on the entry start
+			firstDate = logMatcher.group(1);
+		}
+	}
+
+	private void completeEntry(long entryEnd) throws IOException {
+		if (entryEnd <= entryStart) return;
+		if (job != null && job.isCancelled())
+			throw new CancellationException("Rotation of " + fileNameBase + " cancelled");
+		metrics.entryRead();
+		if (!conditions.accept(firstLine)) {
+			flush();
+			if (conditions.wasSkipped())
+				metrics.entrySkipped();
+			else
+				metrics.entryFiltered();
+			return;
+		}
+		if (firstDate == null)
+			throw new RuntimeException("Log entry not found");
+		if (!firstDate.equals(date)) {
+			flush();
+			date = firstDate;
+			open(RotateWriter.newLogName(outputFolder, fileNameBase, date, false));
+		}
+		if (rangeEnd != entryStart) {
+			flush();
+			rangeStart = entryStart;
+		}
+		rangeEnd = entryEnd;
+		metrics.entryWritten();
+	}
+
+	/**
+	 * Writes the pending range: copied from the read buffer if it's still
+	 * there, transferred from the input otherwise.
+	 */
+	private void flush() throws IOException {
+		if (rangeStart < 0) return;
+		if (rangeStart >= pos) {
+			stage(buffer, (int) (rangeStart - pos), (int) (rangeEnd - rangeStart));
+		} else {
+			writeStaged();
+			long from = rangeStart;
+			long count = rangeEnd - rangeStart;
+			while (count > 0) {
+				long n = in.transferTo(from, count, out);
+				if (n <= 0)
+					throw new IOException("Input ended at " + from);
+				from += n;
+				count -= n;
+			}
+		}
+		rangeStart = rangeEnd = -1;
+	}
+
+	private void stage(byte[] bytes, int from, int length) throws IOException {
+		if (length > staged.remaining()) {
+			writeStaged();
+			if (length > staged.capacity()) {
+				write(ByteBuffer.wrap(bytes, from, length));
+				return;
+			}
+		}
+		staged.put(bytes, from, length);
+	}
+
+	private void writeStaged() throws IOException {
+		staged.flip();
+		write(staged);
+		staged.clear();
+	}
+
+	private void write(ByteBuffer b) throws IOException {
+		while (b.hasRemaining())
+			out.write(b);
+	}
+
+	private void open(String fileName) throws IOException {
+		close();
+		File file = new File(fileName);
+		if (!file.exists())
+			LogRotator.logger.debug("Creating new file: " + file.getName());
+		out = new FileOutputStream(file, true).getChannel();
+		metrics.writerOpened();
+	}
+
+	public void close() throws IOException {
+		if (out == null) return;
+		try {
+			writeStaged();
+		} finally {
+			closeOutput();
+		}
+	}
+
+	private void closeOutput() throws IOException {
+		try {
+			out.close();
+		} finally {
+			out = null;
+			metrics.writerClosed();
+		}
+	}
+}
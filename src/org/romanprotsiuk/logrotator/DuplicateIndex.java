@@ -0,0 +1,246 @@
+package org.romanprotsiuk.logrotator;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+
+/**
+ * Recent-window index of error signatures. A signature is a 64-bit hash of
+ * the severity, the logging location, the exception line, the causes and
+ * the significant stack frames of an entry, so repeated errors are
+ * recognized in O(1) even when other entries are logged in between. Only
+ * entries with a stack trace or exception line (more than one line) get a
+ * signature, and only those written out are remembered.
+ * <p>
+ * The window keeps the last <code>maxEntries</code> signatures, and when
+ * <code>maxAge</code> is positive, only those logged less than
+ * <code>maxAge</code> milliseconds before the current entry.
+ * <p>
+ * With {@link SeenSignatures} shared by all workers, a signature which
+ * isn't in the window but was seen before, in another file, by another
+ * worker or in an earlier run, is a duplicate too. Known signatures are
+ * counted until the index is finished, or up to {@link #MAX_KNOWN} of them
+ * at a time.
+ */
+class DuplicateIndex {
+
+	static final int MAX_KNOWN = 10000;
+
+	static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	public DuplicateIndex(int maxEntries, long maxAge) {
+		if (maxEntries < 1)
+			throw new RuntimeException("Duplicates window must be positive: " + maxEntries);
+		this.maxEntries = maxEntries;
+		this.maxAge = maxAge;
+		this.signatures = new long[maxEntries];
+		this.times = new long[maxEntries];
+	}
+
+	/**
+	 * Creates an empty index with the same window.
+	 */
+	public DuplicateIndex(DuplicateIndex index) {
+		this(index.maxEntries, index.maxAge);
+		this.seen = index.seen;
+	}
+
+	private int maxEntries;
+	private long maxAge;
+
+	private long[] signatures;
+	private long[] times;
+	private int head = 0;
+	private int size = 0;
+	private Map<Long, Repeats> window = new HashMap<Long, Repeats>();
+	private List<Repeats> finished = new ArrayList<Repeats>();
+	private SeenSignatures seen = null;
+	private Map<Long, Repeats> known = new HashMap<Long, Repeats>();
+	// checked entry with a new signature, until it's recorded or the next check
+	private LogEntry pending = null;
+	private long pendingSignature;
+	private long pendingTime;
+
+	public void setSeen(SeenSignatures seen) {
+		this.seen = seen;
+	}
+
+	/**
+	 * Occurrences of one signature while it stayed in the window.
+	 */
+	class Repeats {
+		public Repeats(String firstLine, long time) {
+			this.firstLine = firstLine;
+			this.lastTime = time;
+		}
+		public String firstLine;
+		public long lastTime;
+		public int inWindow = 1;
+		public int repeated = 0;
+		// seen before, so every occurrence is a repeat
+		public boolean known = false;
+
+		public String summary() {
+			return (known ? "--- known, seen " : "--- repeated ") + repeated + " times: " + firstLine;
+		}
+	}
+
+	/**
+	 * Tells whether the same signature is still in the window or was seen
+	 * before, counting the entry as a repeat if so. A new signature is only
+	 * remembered by {@link #record()}, once its entry is written.
+	 */
+	public boolean check(CharSequence lines) {
+		return lines != null && check(new LogEntry(lines));
+	}
+	
+	public boolean check(LogEntry entry) {
+		pending = null;
+		if (entry == null) return false;
+		CharSequence lines = entry.getText();
+		int nl = entry.getFirstLineEnd();
+		if (nl + Properties.NL.length() >= lines.length()) return false;
+		long time = LogConditions.timestamp(lines);
+		long signature = signature(entry);
+
+		expire(time);
+		Repeats r = window.get(signature);
+		if (r == null && seen != null)
+			r = known.get(signature);
+		if (r == null && seen != null && seen.contains(signature)) {
+			if (known.size() == MAX_KNOWN) {
+				finished.addAll(known.values());
+				known.clear();
+			}
+			r = new Repeats(lines.subSequence(0, nl).toString(), time);
+			r.known = true;
+			known.put(signature, r);
+		}
+		if (r == null) {
+			pending = entry;
+			pendingSignature = signature;
+			pendingTime = time;
+			return false;
+		}
+		r.repeated++;
+		r.lastTime = time;
+		if (!r.known) {
+			r.inWindow++;
+			add(signature, time);
+		}
+		return true;
+	}
+
+	/**
+	 * Remembers the signature of the entry last passed to
+	 * {@link #check(LogEntry)}, which wasn't a repeat and is written out.
+	 */
+	public void record() {
+		if (pending == null) return;
+		Repeats r = new Repeats(pending.getText().subSequence(0, pending.getFirstLineEnd()).toString(), pendingTime);
+		window.put(pendingSignature, r);
+		add(pendingSignature, pendingTime);
+		if (seen != null)
+			seen.add(pendingSignature);
+		pending = null;
+	}
+
+	private void add(long signature, long time) {
+		if (size == maxEntries)
+			evictOldest();
+		int tail = (head + size) % maxEntries;
+		signatures[tail] = signature;
+		times[tail] = time;
+		size++;
+	}
+
+	private void expire(long time) {
+		if (maxAge <= 0 || time < 0) return;
+		while (size > 0 && times[head] >= 0 && times[head] < time - maxAge)
+			evictOldest();
+	}
+
+	private void evictOldest() {
+		long signature = signatures[head];
+		head = (head + 1) % maxEntries;
+		size--;
+		Repeats r = window.get(signature);
+		if (r != null && --r.inWindow == 0) {
+			window.remove(signature);
+			if (r.repeated > 0)
+				finished.add(r);
+		}
+	}
+
+	public int getFinishedCount() {
+		return finished.size();
+	}
+
+	/**
+	 * Returns signatures that repeated and have left the window since the
+	 * last call.
+	 */
+	public List<Repeats> drainFinished() {
+		List<Repeats> result = finished;
+		finished = new ArrayList<Repeats>();
+		return result;
+	}
+
+	/**
+	 * Empties the window, e.g. at the end of input.
+	 */
+	public List<Repeats> finish() {
+		while (size > 0)
+			evictOldest();
+		finished.addAll(known.values());
+		known.clear();
+		return drainFinished();
+	}
+
+	public static long signature(CharSequence lines) {
+		return signature(new LogEntry(lines));
+	}
+	
+	public static long signature(LogEntry entry) {
+		long h = FNV_OFFSET;
+		CharSequence lines = entry.getText();
+		int firstEnd = entry.getFirstLineEnd();
+		if (entry.isLogEntry()) {
+			h = hash(h, lines, entry.partStart(LogEntry.SEVERITY_PART), entry.partEnd(LogEntry.SEVERITY_PART));
+			h = hash(h, lines, entry.start(2), entry.end(2));
+			h = hash(h, lines, entry.start(3), entry.end(3));
+			h = hash(h, lines, entry.start(4), entry.end(4));
+		}
+		Matcher m;
+		int secondStart = Math.min(firstEnd + Properties.NL.length(), lines.length());
+		h = hash(h, lines, secondStart, LogConditions.lineEnd(lines, secondStart));
+
+		m = Properties.CAUSED_BY.matcher(lines);
+		while (m.find())
+			h = hash(h, lines, m.start(1), m.end(1));
+
+		m = Properties.SIGNIFICANT_STACK_INFO.matcher(lines);
+		while (m.find()) {
+			h = hash(h, lines, m.start(1), m.end(1));
+			h = hash(h, lines, m.start(2), m.end(2));
+			h = hash(h, lines, m.start(4), m.end(4));
+		}
+		return h;
+	}
+
+	/**
+	 * Continues the FNV-1a hash <code>h</code>, starting at
+	 * {@link #FNV_OFFSET}, with a region of <code>s</code>.
+	 */
+	static long hash(long h, CharSequence s, int start, int end) {
+		for (int i = start; i < end; i++) {
+			h ^= s.charAt(i);
+			h *= FNV_PRIME;
+		}
+		h ^= 0xff;
+		return h * FNV_PRIME;
+	}
+}
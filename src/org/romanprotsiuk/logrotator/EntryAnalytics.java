@@ -0,0 +1,386 @@
+package org.romanprotsiuk.logrotator;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Entry counts per minute and severity, and the most frequent error
+ * signatures, gathered while entries are rotated so that the report needs
+ * no further pass over the data. Each worker thread counts minutes in its
+ * own <code>long[]</code>, a row of severities per minute, growing with the
+ * time range seen up to {@link #MAX_MINUTES}; entries without a timestamp
+ * or out of the range are counted apart. The rows are summed up for the
+ * report.
+ * <p>
+ * Signatures of ERROR and FATAL entries, see {@link #signature(LogEntry)},
+ * are counted by space-saving: there are at most <code>topSignatures</code>
+ * counters, kept in a heap by count, and a signature without one takes over
+ * the smallest, keeping its count as the possible overestimate. Counts are
+ * exact as long as there are counters left, and any signature seen more
+ * often than errors / <code>topSignatures</code> times has one. Shared by
+ * all workers of a job; only signatures are counted under a common lock.
+ */
+class EntryAnalytics {
+
+	public static final int DEFAULT_TOP_SIGNATURES = 100;
+	// a year, about 30 MB of counts
+	static final int MAX_MINUTES = 366 * 24 * 60;
+
+	private static final long MINUTE = 60 * 1000;
+	// OffsetIndex.SEVERITIES and the rest
+	private static final int SEVERITIES = OffsetIndex.SEVERITIES.length + 1;
+	private static final int ERROR = 4;
+	private static final int FATAL = 5;
+
+	public EntryAnalytics(int topSignatures) {
+		if (topSignatures < 1)
+			throw new RuntimeException("Number of signatures must be positive: " + topSignatures);
+		this.topSignatures = topSignatures;
+	}
+
+	private int topSignatures;
+	private List<Counts> stripes = new CopyOnWriteArrayList<Counts>();
+	private ThreadLocal<Counts> stripe = new ThreadLocal<Counts>() {
+		@Override
+		protected Counts initialValue() {
+			Counts c = new Counts();
+			stripes.add(c);
+			return c;
+		}
+	};
+	private Map<String, Counter> counters = new HashMap<String, Counter>();
+	// the same counters, smallest count first
+	private List<Counter> heap = new ArrayList<Counter>();
+
+	/**
+	 * Entry counts of one worker thread, or all of them summed up. Locked
+	 * by their thread only, and while they're summed up.
+	 */
+	static class Counts {
+		// counts[(minute - base) * SEVERITIES + severity], minutes seen are from first to last
+		public long[] counts = new long[0];
+		public long base = 0;
+		public long first = 0;
+		public long last = -1;
+		public long[] untimed = new long[SEVERITIES];
+		public long total = 0;
+		public long errors = 0;
+		public long unattributed = 0;
+
+		public synchronized void add(long timestamp, int severity, boolean error, boolean attributed) {
+			total++;
+			int row = row(timestamp);
+			if (row >= 0)
+				counts[row * SEVERITIES + severity]++;
+			else
+				untimed[severity]++;
+			if (!error) return;
+			errors++;
+			if (!attributed)
+				unattributed++;
+		}
+
+		// row of the timestamp's minute, growing the counts to it, -1 if it can't be counted
+		private int row(long timestamp) {
+			if (timestamp < 0) return -1;
+			long minute = timestamp / MINUTE;
+			boolean empty = last < first;
+			long from = empty ? minute : Math.min(first, minute);
+			long to = empty ? minute : Math.max(last, minute);
+			if (to - from >= MAX_MINUTES) return -1;
+			int capacity = counts.length / SEVERITIES;
+			if (from < base || to >= base + capacity) {
+				int size = (int) (to - from + 1);
+				int grown = Math.max(size, Math.min(MAX_MINUTES, capacity * 2));
+				// room on the side the range grows to
+				long newBase = from < base ? to + 1 - grown : from;
+				long[] grownCounts = new long[grown * SEVERITIES];
+				if (!empty)
+					System.arraycopy(counts, (int) (first - base) * SEVERITIES, grownCounts,
+							(int) (first - newBase) * SEVERITIES, (int) (last - first + 1) * SEVERITIES);
+				counts = grownCounts;
+				base = newBase;
+			}
+			first = from;
+			last = to;
+			return (int) (minute - base);
+		}
+
+		// adds the other counts to these
+		public synchronized void addAll(Counts other) {
+			synchronized (other) {
+				for (int i = 0; i < SEVERITIES; i++)
+					untimed[i] += other.untimed[i];
+				for (long m = other.first; m <= other.last; m++) {
+					int offset = (int) (m - other.base) * SEVERITIES;
+					for (int i = 0; i < SEVERITIES; i++) {
+						long count = other.counts[offset + i];
+						if (count == 0) continue;
+						int row = row(m * MINUTE);
+						if (row >= 0)
+							counts[row * SEVERITIES + i] += count;
+						else
+							untimed[i] += count;
+					}
+				}
+				total += other.total;
+				errors += other.errors;
+				unattributed += other.unattributed;
+			}
+		}
+	}
+
+	static class Counter {
+		public Counter(String signature, long count) {
+			this.signature = signature;
+			this.count = count;
+			this.error = count;
+		}
+		public String signature;
+		public long count;
+		public long error;
+		public long first = -1;
+		public long last = -1;
+		// position in the heap
+		public int index;
+	}
+
+	private static final Comparator<Counter> BY_COUNT = new Comparator<Counter>() {
+		@Override
+		public int compare(Counter a, Counter b) {
+			return a.count < b.count ? 1 : a.count > b.count ? -1 : a.signature.compareTo(b.signature);
+		}
+	};
+
+	/**
+	 * Column of a severity name, the last one for any other.
+	 */
+	static int severity(String name) {
+		int i = name != null ? OffsetIndex.indexOf(name) : -1;
+		return i >= 0 ? i : SEVERITIES - 1;
+	}
+
+	/**
+	 * Location and message of the entry's first line, the
+	 * {@link Properties#LOG} groups, with numbers in the message replaced by
+	 * <code>#</code> so that errors differing only in ids are counted
+	 * together; unlike per-error output names, stack traces aren't looked
+	 * into. Null if there's no location.
+	 */
+	static String signature(LogEntry e) {
+		String method = e.getMethod();
+		if (method == null) return null;
+		String line = e.getLineNumber();
+		StringBuilder s = new StringBuilder(e.getClassName()).append('.').append(method);
+		if (line != null && line.length() != 0)
+			s.append(':').append(line);
+		s.append(" - ");
+		String message = e.getMessage();
+		for (int i = 0; i < message.length(); i++) {
+			char c = message.charAt(i);
+			if (c < '0' || c > '9')
+				s.append(c);
+			else if (i == 0 || message.charAt(i - 1) < '0' || message.charAt(i - 1) > '9')
+				s.append('#');
+		}
+		return s.toString();
+	}
+
+	static boolean isError(int severity) {
+		return severity == ERROR || severity == FATAL;
+	}
+
+	/**
+	 * Counts an entry logged at <code>timestamp</code> (-1 if unknown),
+	 * with the error <code>signature</code> if it's an error.
+	 */
+	public void add(long timestamp, int severity, String signature) {
+		boolean error = isError(severity);
+		stripe.get().add(timestamp, severity, error, signature != null);
+		if (error && signature != null)
+			count(signature, timestamp);
+	}
+
+	private synchronized void count(String signature, long timestamp) {
+		Counter c = counters.get(signature);
+		if (c == null) {
+			if (heap.size() < topSignatures) {
+				c = new Counter(signature, 0);
+				c.index = heap.size();
+				heap.add(c);
+			} else {
+				Counter min = heap.get(0);
+				counters.remove(min.signature);
+				c = new Counter(signature, min.count);
+				c.index = 0;
+				heap.set(0, c);
+			}
+			counters.put(signature, c);
+		}
+		c.count++;
+		siftDown(c);
+		if (timestamp >= 0) {
+			if (c.first < 0 || timestamp < c.first)
+				c.first = timestamp;
+			if (timestamp > c.last)
+				c.last = timestamp;
+		}
+	}
+
+	// moves a counter whose count grew below the smaller ones
+	private void siftDown(Counter c) {
+		int i = c.index;
+		int size = heap.size();
+		while (2 * i + 1 < size) {
+			int child = 2 * i + 1;
+			if (child + 1 < size && heap.get(child + 1).count < heap.get(child).count)
+				child++;
+			Counter smaller = heap.get(child);
+			if (smaller.count >= c.count) break;
+			heap.set(i, smaller);
+			smaller.index = i;
+			i = child;
+		}
+		heap.set(i, c);
+		c.index = i;
+	}
+
+	/**
+	 * Writes the counts so far: as JSON if <code>report</code> ends with
+	 * <code>.json</code>, otherwise as CSV: the minutes to
+	 * <code>report</code>, untimed entries first with no minute, and the
+	 * signatures next to it in <code>&lt;name&gt;.signatures.csv</code>.
+	 */
+	public void writeReport(File report) throws IOException {
+		Counts all = new Counts();
+		for (Counts c : stripes)
+			all.addAll(c);
+		List<Counter> top;
+		synchronized (this) {
+			top = new ArrayList<Counter>(heap.size());
+			for (Counter c : heap) {
+				Counter copy = new Counter(c.signature, c.error);
+				copy.count = c.count;
+				copy.first = c.first;
+				copy.last = c.last;
+				top.add(copy);
+			}
+		}
+		Collections.sort(top, BY_COUNT);
+		SimpleDateFormat minutes = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+		minutes.setTimeZone(TimeZone.getTimeZone("UTC"));
+		SimpleDateFormat times = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss,SSS");
+		times.setTimeZone(TimeZone.getTimeZone("UTC"));
+		if (report.getName().endsWith(".json"))
+			writeJson(report, all, top, minutes, times);
+		else
+			writeCsv(report, all, top, minutes, times);
+	}
+
+	private static void writeCsv(File report, Counts all, List<Counter> top, SimpleDateFormat minutes, SimpleDateFormat times)
+			throws IOException {
+		Writer w = RotateWriter.createWriter(report.getPath(), false);
+		try {
+			w.write("minute");
+			for (String s : OffsetIndex.SEVERITIES)
+				w.write("," + s);
+			w.write(",OTHER" + Properties.NL);
+			writeCsvRow(w, "", all.untimed, 0);
+			for (long m = all.first; m <= all.last; m++)
+				writeCsvRow(w, minutes.format(new Date(m * MINUTE)), all.counts, (int) (m - all.base) * SEVERITIES);
+		} finally {
+			w.close();
+		}
+
+		String name = report.getName();
+		name = name.contains(".") ? name.substring(0, name.lastIndexOf(".")) : name;
+		w = RotateWriter.createWriter(new File(report.getParentFile(), name + ".signatures.csv").getPath(), false);
+		try {
+			w.write("count,overestimate,first,last,signature" + Properties.NL);
+			for (Counter c : top)
+				w.write(String.format("%d,%d,%s,%s,%s%s", c.count, c.error, csv(time(times, c.first)),
+						csv(time(times, c.last)), csv(c.signature), Properties.NL));
+		} finally {
+			w.close();
+		}
+	}
+
+	private static void writeCsvRow(Writer w, String minute, long[] counts, int offset) throws IOException {
+		StringBuilder row = new StringBuilder(minute);
+		for (int i = 0; i < SEVERITIES; i++)
+			row.append(',').append(counts[offset + i]);
+		w.write(row.append(Properties.NL).toString());
+	}
+
+	private static void writeJson(File report, Counts all, List<Counter> top, SimpleDateFormat minutes, SimpleDateFormat times)
+			throws IOException {
+		Writer w = RotateWriter.createWriter(report.getPath(), false);
+		try {
+			w.write(String.format("{\"entries\": %d, \"errors\": %d, \"unattributed\": %d,%s", all.total, all.errors,
+					all.unattributed, Properties.NL));
+			w.write("\"untimed\": " + jsonRow(all.untimed, 0) + "," + Properties.NL);
+			w.write("\"minutes\": [");
+			for (long m = all.first; m <= all.last; m++) {
+				w.write(m > all.first ? "," + Properties.NL : Properties.NL);
+				w.write(String.format("{\"minute\": \"%s\", \"counts\": %s}", minutes.format(new Date(m * MINUTE)),
+						jsonRow(all.counts, (int) (m - all.base) * SEVERITIES)));
+			}
+			w.write("]," + Properties.NL + "\"signatures\": [");
+			for (int i = 0; i < top.size(); i++) {
+				Counter c = top.get(i);
+				w.write(i > 0 ? "," + Properties.NL : Properties.NL);
+				w.write(String.format("{\"count\": %d, \"overestimate\": %d, \"first\": %s, \"last\": %s, \"signature\": %s}",
+						c.count, c.error, json(time(times, c.first)), json(time(times, c.last)), json(c.signature)));
+			}
+			w.write("]}" + Properties.NL);
+		} finally {
+			w.close();
+		}
+	}
+
+	private static String jsonRow(long[] counts, int offset) {
+		StringBuilder row = new StringBuilder("{");
+		for (int i = 0; i < SEVERITIES; i++) {
+			if (i > 0)
+				row.append(", ");
+			String name = i < OffsetIndex.SEVERITIES.length ? OffsetIndex.SEVERITIES[i] : "OTHER";
+			row.append('"').append(name).append("\": ").append(counts[offset + i]);
+		}
+		return row.append('}').toString();
+	}
+
+	private static String time(SimpleDateFormat format, long time) {
+		return time >= 0 ? format.format(new Date(time)) : "";
+	}
+
+	private static String csv(String value) {
+		if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0)
+			return value;
+		return '"' + value.replace("\"", "\"\"") + '"';
+	}
+
+	private static String json(String value) {
+		StringBuilder s = new StringBuilder("\"");
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\')
+				s.append('\\').append(c);
+			else if (c < 0x20)
+				s.append(String.format("\\u%04x", (int) c));
+			else
+				s.append(c);
+		}
+		return s.append('"').toString();
+	}
+}
@@ -0,0 +1,499 @@
+package org.romanprotsiuk.logrotator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Binary columnar store of log entries, written instead of text outputs by
+ * {@link LogRotator#setStoreOutput(boolean)} and queried with a
+ * {@link Reader}. Entries are kept in blocks of up to
+ * {@link #BLOCK_ENTRIES}, column by column:
+ * <ul>
+ * <li>timestamps, as zigzag varint deltas;</li>
+ * <li>severity, thread, class, method and line, as ids into a dictionary
+ * of the block (parts of <code>LOG_ENTRY_COMPOSITION</code>, see
+ * {@link LogEntry});</li>
+ * <li>messages and whole entry texts, deflated.</li>
+ * </ul>
+ * Every block starts with a header holding its time range and the length of
+ * each column, so a query reads only the columns it tests and skips blocks
+ * out of its time range. Blocks are self-contained, so stores can be
+ * concatenated, e.g. the part outputs of a chunked input.
+ */
+public class EntryStore {
+
+	public static final String EXTENSION = ".les";
+	public static final int BLOCK_ENTRIES = 4096;
+
+	private static final int MAGIC = 0x4C524553;
+	private static final int VERSION = 1;
+	private static final int TEXT_BLOCK_LIMIT = 1024 * 1024;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final int TIME = 0;
+	private static final int SEVERITY = 1;
+	private static final int THREAD = 2;
+	private static final int CLASS = 3;
+	private static final int METHOD = 4;
+	private static final int LINE = 5;
+	private static final int MESSAGE = 6;
+	private static final int TEXT = 7;
+	private static final int COLUMNS = 8;
+	// magic, version, count, time range, column lengths
+	private static final int HEADER_SIZE = 4 + 1 + 4 + 16 + 4 * COLUMNS;
+
+	/**
+	 * Store for the outputs of <code>inputName</code> in
+	 * <code>outputFolder</code>.
+	 */
+	static File storeFile(String outputFolder, String inputName) {
+		String name = inputName.contains(".") ? inputName.substring(0, inputName.lastIndexOf(".")) : inputName;
+		return new File(outputFolder, name + EXTENSION);
+	}
+
+	/**
+	 * Appends entries to a store, a block at a time. Not thread-safe.
+	 */
+	static class Writer implements Closeable {
+		public Writer(File file) throws IOException {
+			this.out = new FileOutputStream(file, true);
+		}
+
+		private OutputStream out;
+		private int count = 0;
+		private long[] times = new long[BLOCK_ENTRIES];
+		private Dictionary[] dictionaries = new Dictionary[LINE + 1];
+		private Strings messages = new Strings();
+		private Strings texts = new Strings();
+		private Deflater deflater = new Deflater();
+
+		{
+			for (int c = SEVERITY; c <= LINE; c++)
+				dictionaries[c] = new Dictionary();
+		}
+
+		public void add(LogEntry e) throws IOException {
+			times[count] = e.getTimestamp();
+			dictionaries[SEVERITY].add(count, e.getSeverity());
+			dictionaries[THREAD].add(count, e.getThread());
+			dictionaries[CLASS].add(count, e.getClassName());
+			dictionaries[METHOD].add(count, e.getMethod());
+			dictionaries[LINE].add(count, e.getLineNumber());
+			messages.add(e.getMessage());
+			texts.add(e.getText());
+			if (++count == BLOCK_ENTRIES || texts.size() >= TEXT_BLOCK_LIMIT)
+				flush();
+		}
+
+		/**
+		 * Writes the entries added so far as a block.
+		 */
+		public void flush() throws IOException {
+			if (count == 0) return;
+			byte[][] columns = new byte[COLUMNS][];
+			ByteArrayOutputStream column = new ByteArrayOutputStream();
+			long minTime = Long.MAX_VALUE;
+			long maxTime = Long.MIN_VALUE;
+			long previous = 0;
+			for (int i = 0; i < count; i++) {
+				writeVarLong(column, zigzag(times[i] - previous));
+				previous = times[i];
+				if (times[i] >= 0) {
+					minTime = Math.min(minTime, times[i]);
+					maxTime = Math.max(maxTime, times[i]);
+				}
+			}
+			columns[TIME] = column.toByteArray();
+			for (int c = SEVERITY; c <= LINE; c++)
+				columns[c] = dictionaries[c].encode(count);
+			columns[MESSAGE] = messages.deflate(deflater);
+			columns[TEXT] = texts.deflate(deflater);
+
+			ByteArrayOutputStream block = new ByteArrayOutputStream(HEADER_SIZE + columns[TEXT].length);
+			DataOutputStream header = new DataOutputStream(block);
+			header.writeInt(MAGIC);
+			header.writeByte(VERSION);
+			header.writeInt(count);
+			header.writeLong(minTime);
+			header.writeLong(maxTime);
+			for (byte[] c : columns)
+				header.writeInt(c.length);
+			for (byte[] c : columns)
+				block.write(c);
+			block.writeTo(out);
+
+			count = 0;
+			for (int c = SEVERITY; c <= LINE; c++)
+				dictionaries[c].clear();
+			messages.clear();
+			texts.clear();
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				flush();
+			} finally {
+				deflater.end();
+				out.close();
+			}
+		}
+	}
+
+	/**
+	 * Values of a dictionary column of a block, id 0 standing for none.
+	 */
+	private static class Dictionary {
+		private Map<String, Integer> ids = new HashMap<String, Integer>();
+		private List<String> values = new ArrayList<String>();
+		private int[] entries = new int[BLOCK_ENTRIES];
+
+		public void add(int entry, String value) {
+			int id = 0;
+			if (value != null) {
+				Integer known = ids.get(value);
+				if (known == null) {
+					values.add(value);
+					ids.put(value, known = values.size());
+				}
+				id = known;
+			}
+			entries[entry] = id;
+		}
+
+		public byte[] encode(int count) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			writeVarLong(out, values.size());
+			for (String value : values)
+				writeString(out, value);
+			for (int i = 0; i < count; i++)
+				writeVarLong(out, entries[i]);
+			return out.toByteArray();
+		}
+
+		public void clear() {
+			ids.clear();
+			values.clear();
+		}
+	}
+
+	/**
+	 * Length-prefixed strings of a deflated column.
+	 */
+	private static class Strings {
+		private ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+		public void add(CharSequence s) {
+			if (s == null)
+				writeVarLong(bytes, 0);
+			else
+				writeString(bytes, s.toString());
+		}
+
+		public int size() {
+			return bytes.size();
+		}
+
+		public byte[] deflate(Deflater deflater) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.size() / 4 + 16);
+			writeVarLong(out, bytes.size());
+			deflater.reset();
+			deflater.setInput(bytes.toByteArray());
+			deflater.finish();
+			byte[] buffer = new byte[64 * 1024];
+			while (!deflater.finished())
+				out.write(buffer, 0, deflater.deflate(buffer));
+			return out.toByteArray();
+		}
+
+		public void clear() {
+			bytes.reset();
+		}
+	}
+
+	/**
+	 * What a query selects. Every test is optional and they all have to
+	 * pass; the reader reads the columns of the tests set only, and tests
+	 * dictionary columns once per distinct value of a block.
+	 */
+	public static class Filter {
+		/**
+		 * Time range, <code>to</code> exclusive, in the milliseconds of
+		 * {@link LogConditions#timestamp(CharSequence)}. Entries without a
+		 * timestamp are only selected without a range.
+		 */
+		public long from = Long.MIN_VALUE;
+		public long to = Long.MAX_VALUE;
+		public Set<String> severities = null;
+		public Pattern thread = null;
+		public Pattern className = null;
+		public Pattern method = null;
+		/**
+		 * Patterns found in the first line's message: any of the include
+		 * patterns and none of the skip patterns.
+		 */
+		public Collection<Pattern> includePatterns = null;
+		public Collection<Pattern> skipPatterns = null;
+		/**
+		 * Conditions judging the whole entry text, for what the columns
+		 * can't tell; tested last.
+		 */
+		public LogConditions conditions = null;
+
+		private boolean hasTimeRange() {
+			return from != Long.MIN_VALUE || to != Long.MAX_VALUE;
+		}
+	}
+
+	/**
+	 * Scans a store. Not thread-safe.
+	 */
+	public static class Reader implements Closeable {
+		public Reader(File file) throws IOException {
+			this.raf = new RandomAccessFile(file, "r");
+			this.channel = raf.getChannel();
+			this.name = file.getName();
+		}
+
+		private RandomAccessFile raf;
+		private FileChannel channel;
+		private String name;
+		private ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		private Inflater inflater = new Inflater();
+		private byte[] bytes = new byte[0];
+
+		/**
+		 * Writes the text of the entries <code>filter</code> selects to
+		 * <code>out</code>, if not null, in store order. Returns their number.
+		 */
+		public long scan(Filter filter, java.io.Writer out) throws IOException {
+			long selected = 0;
+			long size = channel.size();
+			long pos = 0;
+			boolean[] match = new boolean[BLOCK_ENTRIES];
+			int[] lengths = new int[COLUMNS];
+			long[] offsets = new long[COLUMNS];
+			PatternSet includes = filter.includePatterns != null ? new PatternSet(filter.includePatterns) : null;
+			PatternSet skips = filter.skipPatterns != null ? new PatternSet(filter.skipPatterns) : null;
+			while (pos < size) {
+				header.clear();
+				readFully(header, pos);
+				header.flip();
+				if (header.getInt() != MAGIC || header.get() != VERSION)
+					throw new IOException("Not a log entry store block at " + pos + " of " + name);
+				int count = header.getInt();
+				long minTime = header.getLong();
+				long maxTime = header.getLong();
+				long offset = pos + HEADER_SIZE;
+				for (int c = 0; c < COLUMNS; c++) {
+					lengths[c] = header.getInt();
+					offsets[c] = offset;
+					offset += lengths[c];
+				}
+				pos = offset;
+				if (filter.hasTimeRange() && (maxTime < filter.from || minTime >= filter.to))
+					continue;
+
+				if (match.length < count)
+					match = new boolean[count];
+				Arrays.fill(match, 0, count, true);
+				if (filter.hasTimeRange())
+					matchTimes(column(offsets[TIME], lengths[TIME]), count, filter, match);
+				if (filter.severities != null)
+					matchDictionary(column(offsets[SEVERITY], lengths[SEVERITY]), count, null, filter.severities, match);
+				if (filter.thread != null)
+					matchDictionary(column(offsets[THREAD], lengths[THREAD]), count, filter.thread, null, match);
+				if (filter.className != null)
+					matchDictionary(column(offsets[CLASS], lengths[CLASS]), count, filter.className, null, match);
+				if (filter.method != null)
+					matchDictionary(column(offsets[METHOD], lengths[METHOD]), count, filter.method, null, match);
+				if (includes != null || skips != null)
+					matchMessages(inflate(offsets[MESSAGE], lengths[MESSAGE]), count, includes, skips, match);
+				if (filter.conditions == null && out == null) {
+					for (int i = 0; i < count; i++)
+						if (match[i])
+							selected++;
+					continue;
+				}
+				if (!any(match, count)) continue;
+				selected += writeTexts(inflate(offsets[TEXT], lengths[TEXT]), count, filter.conditions, match, out);
+			}
+			return selected;
+		}
+
+		private ByteBuffer column(long offset, int length) throws IOException {
+			ByteBuffer b = ByteBuffer.allocate(length);
+			readFully(b, offset);
+			b.flip();
+			return b;
+		}
+
+		private void readFully(ByteBuffer b, long pos) throws IOException {
+			while (b.hasRemaining()) {
+				int n = channel.read(b, pos);
+				if (n < 0)
+					throw new IOException("Truncated block in " + name);
+				pos += n;
+			}
+		}
+
+		private ByteBuffer inflate(long offset, int length) throws IOException {
+			ByteBuffer in = column(offset, length);
+			int raw = (int) readVarLong(in);
+			if (bytes.length < raw)
+				bytes = new byte[Math.max(raw, 2 * bytes.length)];
+			inflater.reset();
+			inflater.setInput(in.array(), in.position(), in.remaining());
+			try {
+				int n = 0;
+				while (n < raw) {
+					int k = inflater.inflate(bytes, n, raw - n);
+					if (k == 0 && (inflater.finished() || inflater.needsInput()))
+						throw new IOException("Truncated column in " + name);
+					n += k;
+				}
+			} catch (DataFormatException e) {
+				throw new IOException("Corrupt column in " + name, e);
+			}
+			return ByteBuffer.wrap(bytes, 0, raw);
+		}
+
+		private static void matchTimes(ByteBuffer in, int count, Filter filter, boolean[] match) {
+			long time = 0;
+			for (int i = 0; i < count; i++) {
+				time += unzigzag(readVarLong(in));
+				if (time < 0 || time < filter.from || time >= filter.to)
+					match[i] = false;
+			}
+		}
+
+		private static void matchDictionary(ByteBuffer in, int count, Pattern pattern, Set<String> values,
+				boolean[] match) {
+			int size = (int) readVarLong(in);
+			boolean[] accepted = new boolean[size + 1];
+			Matcher m = pattern != null ? pattern.matcher("") : null;
+			for (int id = 1; id <= size; id++) {
+				String value = readString(in);
+				accepted[id] = m != null ? m.reset(value).find() : values.contains(value);
+			}
+			for (int i = 0; i < count; i++)
+				if (!accepted[(int) readVarLong(in)])
+					match[i] = false;
+		}
+
+		private static void matchMessages(ByteBuffer in, int count, PatternSet includes, PatternSet skips,
+				boolean[] match) {
+			for (int i = 0; i < count; i++) {
+				if (!match[i]) {
+					skipString(in);
+					continue;
+				}
+				String message = readString(in);
+				if (message == null)
+					message = "";
+				if (includes != null && !includes.matches(message))
+					match[i] = false;
+				else if (skips != null && skips.matches(message))
+					match[i] = false;
+			}
+		}
+
+		private static long writeTexts(ByteBuffer in, int count, LogConditions conditions, boolean[] match,
+				java.io.Writer out) throws IOException {
+			long selected = 0;
+			for (int i = 0; i < count; i++) {
+				if (!match[i]) {
+					skipString(in);
+					continue;
+				}
+				String text = readString(in);
+				if (conditions != null && !conditions.accept(text))
+					continue;
+				if (out != null)
+					out.write(text);
+				selected++;
+			}
+			return selected;
+		}
+
+		private static boolean any(boolean[] match, int count) {
+			for (int i = 0; i < count; i++)
+				if (match[i])
+					return true;
+			return false;
+		}
+
+		@Override
+		public void close() throws IOException {
+			inflater.end();
+			raf.close();
+		}
+	}
+
+	private static long zigzag(long n) {
+		return (n << 1) ^ (n >> 63);
+	}
+
+	private static long unzigzag(long n) {
+		return (n >>> 1) ^ -(n & 1);
+	}
+
+	private static void writeVarLong(ByteArrayOutputStream out, long n) {
+		while ((n & ~0x7FL) != 0) {
+			out.write((int) ((n & 0x7F) | 0x80));
+			n >>>= 7;
+		}
+		out.write((int) n);
+	}
+
+	private static long readVarLong(ByteBuffer in) {
+		long n = 0;
+		for (int shift = 0; ; shift += 7) {
+			byte b = in.get();
+			n |= (long) (b & 0x7F) << shift;
+			if (b >= 0) return n;
+		}
+	}
+
+	// strings are stored as their UTF-8 length plus one, zero standing for null
+	private static void writeString(ByteArrayOutputStream out, String s) {
+		byte[] b = s.getBytes(UTF8);
+		writeVarLong(out, b.length + 1);
+		out.write(b, 0, b.length);
+	}
+
+	private static String readString(ByteBuffer in) {
+		int length = (int) readVarLong(in) - 1;
+		if (length < 0) return null;
+		String s = new String(in.array(), in.arrayOffset() + in.position(), length, UTF8);
+		in.position(in.position() + length);
+		return s;
+	}
+
+	private static void skipString(ByteBuffer in) {
+		int length = (int) readVarLong(in) - 1;
+		if (length > 0)
+			in.position(in.position() + length);
+	}
+}
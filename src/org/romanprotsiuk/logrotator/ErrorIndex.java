@@ -0,0 +1,308 @@
+package org.romanprotsiuk.logrotator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TimeZone;
+
+/**
+ * Counts errors by signature (class, method, line and message, as used for
+ * per-error output names) instead of writing every entry out. For each
+ * signature the count, the first and last timestamps and the earliest entry
+ * as a sample are kept.
+ * <p>
+ * Memory is bounded by an estimate of <code>maxMemory</code> bytes: when
+ * it's exceeded, the index is written to a spill file sorted by signature
+ * and cleared. The report merges the spill files, so it costs one sequential
+ * pass over them, and lists the most frequent signatures. Shared by all
+ * workers of a job.
+ */
+class ErrorIndex {
+
+	public static final long DEFAULT_MAX_MEMORY = 64 * 1024 * 1024;
+	public static final int DEFAULT_REPORT_LIMIT = 1000;
+
+	private static final int MAX_SAMPLE_LENGTH = 8 * 1024;
+	// per signature: map entry, Stats object and String headers
+	private static final int ENTRY_OVERHEAD = 160;
+
+	public ErrorIndex() {
+		this(DEFAULT_MAX_MEMORY);
+	}
+
+	public ErrorIndex(long maxMemory) {
+		this(maxMemory, new File(System.getProperty("java.io.tmpdir")));
+	}
+
+	public ErrorIndex(long maxMemory, File spillFolder) {
+		if (maxMemory < 1)
+			throw new RuntimeException("Error index memory limit must be positive: " + maxMemory);
+		this.maxMemory = maxMemory;
+		this.spillFolder = spillFolder;
+	}
+
+	private long maxMemory;
+	private File spillFolder;
+	private Map<String, Stats> index = new HashMap<String, Stats>();
+	private long memory = 0;
+	private List<File> spills = new ArrayList<File>();
+	private long total = 0;
+	private long unattributed = 0;
+
+	static class Stats {
+		public Stats(String signature, long count, long first, long last, String sample) {
+			this.signature = signature;
+			this.count = count;
+			this.first = first;
+			this.last = last;
+			this.sample = sample;
+		}
+		public String signature;
+		public long count;
+		public long first;
+		public long last;
+		public String sample;
+
+		void merge(Stats other) {
+			count += other.count;
+			if (other.first >= 0 && (first < 0 || other.first < first)) {
+				first = other.first;
+				sample = other.sample;
+			}
+			if (other.last > last)
+				last = other.last;
+		}
+
+		long size() {
+			return ENTRY_OVERHEAD + 2L * (signature.length() + sample.length());
+		}
+	}
+
+	private static final Comparator<Stats> BY_COUNT = new Comparator<Stats>() {
+		@Override
+		public int compare(Stats a, Stats b) {
+			return a.count != b.count ? (a.count < b.count ? -1 : 1) : b.signature.compareTo(a.signature);
+		}
+	};
+
+	/**
+	 * Counts an entry; a null signature is an error without a location.
+	 */
+	public synchronized void add(String signature, String lines) throws IOException {
+		total++;
+		if (signature == null) {
+			unattributed++;
+			return;
+		}
+		long time = LogConditions.timestamp(lines);
+		Stats s = index.get(signature);
+		if (s == null) {
+			String sample = lines.length() > MAX_SAMPLE_LENGTH ? lines.substring(0, MAX_SAMPLE_LENGTH) : lines;
+			s = new Stats(signature, 1, time, time, sample);
+			index.put(signature, s);
+			memory += s.size();
+			if (memory > maxMemory)
+				spill();
+		} else {
+			s.count++;
+			if (time >= 0 && (s.first < 0 || time < s.first)) {
+				memory -= s.size();
+				s.first = time;
+				s.sample = lines.length() > MAX_SAMPLE_LENGTH ? lines.substring(0, MAX_SAMPLE_LENGTH) : lines;
+				memory += s.size();
+			}
+			if (time > s.last)
+				s.last = time;
+		}
+	}
+
+	public synchronized long getTotal() {
+		return total;
+	}
+
+	public synchronized int getSpillCount() {
+		return spills.size();
+	}
+
+	private void spill() throws IOException {
+		List<Stats> sorted = new ArrayList<Stats>(index.values());
+		Collections.sort(sorted, new Comparator<Stats>() {
+			@Override
+			public int compare(Stats a, Stats b) {
+				return a.signature.compareTo(b.signature);
+			}
+		});
+		File file = File.createTempFile("logrotator-errors", ".spill", spillFolder);
+		file.deleteOnExit();
+		DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+		try {
+			for (Stats s : sorted) {
+				writeString(os, s.signature);
+				os.writeLong(s.count);
+				os.writeLong(s.first);
+				os.writeLong(s.last);
+				writeString(os, s.sample);
+			}
+		} finally {
+			os.close();
+		}
+		spills.add(file);
+		LogRotator.logger.debug("Spilled " + sorted.size() + " error signatures to " + file.getName());
+		index.clear();
+		memory = 0;
+	}
+
+	// writeUTF is limited to 64 KB
+	private static void writeString(DataOutputStream os, String s) throws IOException {
+		byte[] bytes = s.getBytes("UTF-8");
+		os.writeInt(bytes.length);
+		os.write(bytes);
+	}
+
+	private static String readString(DataInputStream is) throws IOException {
+		byte[] bytes = new byte[is.readInt()];
+		is.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	/**
+	 * Sorted run of one spill file.
+	 */
+	private static class Run {
+		public Run(File file) throws IOException {
+			this.is = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+			next();
+		}
+		private DataInputStream is;
+		public Stats head;
+
+		public void next() throws IOException {
+			try {
+				String signature = readString(is);
+				head = new Stats(signature, is.readLong(), is.readLong(), is.readLong(), readString(is));
+			} catch (EOFException e) {
+				head = null;
+				is.close();
+			}
+		}
+
+		public void close() throws IOException {
+			is.close();
+		}
+	}
+
+	/**
+	 * Writes the <code>limit</code> most frequent signatures with their
+	 * samples, most frequent first. Consumes the index.
+	 */
+	public synchronized void writeReport(File report, int limit) throws IOException {
+		PriorityQueue<Stats> top = new PriorityQueue<Stats>(Math.max(1, Math.min(limit, 1024)), BY_COUNT);
+		long signatures = 0;
+
+		if (spills.isEmpty()) {
+			for (Stats s : index.values()) {
+				signatures++;
+				offer(top, s, limit);
+			}
+		} else {
+			if (!index.isEmpty())
+				spill();
+			PriorityQueue<Run> runs = new PriorityQueue<Run>(spills.size(), new Comparator<Run>() {
+				@Override
+				public int compare(Run a, Run b) {
+					return a.head.signature.compareTo(b.head.signature);
+				}
+			});
+			try {
+				for (File f : spills) {
+					Run r = new Run(f);
+					if (r.head != null)
+						runs.add(r);
+				}
+				while (!runs.isEmpty()) {
+					Run r = runs.poll();
+					Stats s = r.head;
+					advance(runs, r);
+					while (!runs.isEmpty() && runs.peek().head.signature.equals(s.signature)) {
+						Run same = runs.poll();
+						s.merge(same.head);
+						advance(runs, same);
+					}
+					signatures++;
+					offer(top, s, limit);
+				}
+			} finally {
+				for (Run r : runs)
+					r.close();
+			}
+		}
+
+		List<Stats> result = new ArrayList<Stats>(top);
+		Collections.sort(result, Collections.reverseOrder(BY_COUNT));
+
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss,SSS");
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		Writer w = RotateWriter.createWriter(report.getPath(), false);
+		try {
+			w.write(String.format("%d errors, %d signatures, %d without location%s", total, signatures, unattributed,
+					Properties.NL));
+			for (Stats s : result) {
+				w.write(Properties.NL);
+				w.write(String.format("=== %d times, %s - %s: %s%s", s.count, time(format, s.first),
+						time(format, s.last), s.signature, Properties.NL));
+				w.write(s.sample);
+				if (!s.sample.endsWith(Properties.NL))
+					w.write(Properties.NL);
+			}
+		} finally {
+			w.close();
+		}
+		clear();
+	}
+
+	private static void advance(PriorityQueue<Run> runs, Run r) throws IOException {
+		r.next();
+		if (r.head != null)
+			runs.add(r);
+	}
+
+	private static void offer(PriorityQueue<Stats> top, Stats s, int limit) {
+		if (limit <= 0) return;
+		if (top.size() < limit) {
+			top.add(s);
+		} else if (BY_COUNT.compare(s, top.peek()) > 0) {
+			top.poll();
+			top.add(s);
+		}
+	}
+
+	private static String time(SimpleDateFormat format, long time) {
+		return time >= 0 ? format.format(new Date(time)) : "?";
+	}
+
+	private void clear() {
+		for (File f : spills)
+			f.delete();
+		spills.clear();
+		index.clear();
+		memory = 0;
+		total = 0;
+		unattributed = 0;
+	}
+}
@@ -0,0 +1,39 @@
+package org.romanprotsiuk.logrotator;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+
+/**
+ * Lines of an input to rotate: a reader, or an {@link OffsetIndex.LineReader}
+ * reading bytes and tracking line offsets.
+ */
+interface LineSource {
+
+	/**
+	 * Next line without its line end, null at the end of the input.
+	 */
+	String readLine() throws IOException;
+
+	void close() throws IOException;
+
+	/**
+	 * Lines of a <code>BufferedReader</code>.
+	 */
+	static class Reader implements LineSource {
+		public Reader(BufferedReader r) {
+			this.r = r;
+		}
+
+		private BufferedReader r;
+
+		@Override
+		public String readLine() throws IOException {
+			return r.readLine();
+		}
+
+		@Override
+		public void close() throws IOException {
+			r.close();
+		}
+	}
+}
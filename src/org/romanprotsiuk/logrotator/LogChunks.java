@@ -0,0 +1,250 @@
+package org.romanprotsiuk.logrotator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Splits a single log file into memory-mapped chunks aligned on log entry
+ * starts, so that chunks can be rotated in parallel. Each chunk is rotated
+ * into its own part folder; when the last chunk completes, part outputs are
+ * appended to the real output folder in chunk order. Part folders left by
+ * a failed run are removed before the chunks are rotated again.
+ */
+class LogChunks {
+
+	private static final int WINDOW_SIZE = 64 * 1024 * 1024;
+	private static final String PART_FOLDER_PATTERN = "%s/.%s.part%d";
+
+	public static final long MIN_CHUNK_SIZE = 1024 * 1024;
+
+	public LogChunks(File file, String outputFolder, long chunkSize) throws IOException {
+		this.file = file;
+		this.outputFolder = outputFolder;
+		this.chunks = split(file, Math.max(chunkSize, MIN_CHUNK_SIZE));
+		this.remaining = new AtomicInteger(chunks.size());
+		deleteParts();
+	}
+
+	private File file;
+	private String outputFolder;
+	private List<Chunk> chunks;
+	private AtomicInteger remaining;
+	private volatile boolean failed = false;
+
+	public List<Chunk> getChunks() {
+		return chunks;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	class Chunk {
+		public Chunk(int index, long start, long end) {
+			this.index = index;
+			this.start = start;
+			this.end = end;
+			this.partFolder = String.format(PART_FOLDER_PATTERN, outputFolder, file.getName(), index);
+		}
+		public int index;
+		public long start;
+		public long end;
+		public String partFolder;
+
+		public long length() {
+			return end - start;
+		}
+
+		public InputStream openStream() throws IOException {
+			return new MappedInputStream(new RandomAccessFile(file, "r").getChannel(), start, end);
+		}
+	}
+
+	// part folders of this file in the output folder, whatever chunk size they were made with
+	private void deleteParts() {
+		File[] parts = new File(outputFolder).listFiles();
+		if (parts == null) return;
+		String prefix = "." + file.getName() + ".part";
+		for (File part : parts) {
+			if (part.isDirectory() && part.getName().startsWith(prefix)
+					&& part.getName().substring(prefix.length()).matches("\\d+")) {
+				LogRotator.logger.warn("Removing part outputs left by an earlier run: " + part);
+				delete(part);
+			}
+		}
+	}
+
+	private List<Chunk> split(File file, long chunkSize) throws IOException {
+		List<Chunk> result = new ArrayList<Chunk>();
+		long size = file.length();
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			long start = 0;
+			while (start < size) {
+				long end = start + chunkSize < size ? nextLogStart(channel, start + chunkSize, size) : size;
+				result.add(new Chunk(result.size(), start, end));
+				start = end;
+			}
+		} finally {
+			raf.close();
+		}
+		return result;
+	}
+
+	/**
+	 * Finds the offset of the first line at or after <code>pos</code> which
+	 * starts a log entry, or <code>size</code> if there's none.
+	 */
+	public static long nextLogStart(FileChannel channel, long pos, long size) throws IOException {
+		MappedInputStream in = new MappedInputStream(channel, pos - 1, size);
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		int c;
+		while ((c = in.read()) >= 0 && c != '\n');
+
+		long lineStart = in.position();
+		while (lineStart < size) {
+			line.reset();
+			while ((c = in.read()) >= 0 && c != '\n')
+				line.write(c);
+			String s = line.toString();
+			if (s.endsWith("\r"))
+				s = s.substring(0, s.length() - 1);
+			if (Properties.LOG_START.isLogStart(s))
+				return lineStart;
+			lineStart = in.position();
+		}
+		return size;
+	}
+
+	public void chunkDone(Chunk chunk, boolean success) {
+		if (!success)
+			failed = true;
+		if (remaining.decrementAndGet() != 0) return;
+
+		if (failed) {
+			LogRotator.logger.error("Rotation of " + file.getName() + " failed, part outputs are left in " + outputFolder
+					+ " until it's rotated again");
+			return;
+		}
+		try {
+			stitch();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private void stitch() throws IOException {
+		LogRotator.logger.debug("Stitching " + chunks.size() + " parts of " + file.getName());
+		for (Chunk chunk : chunks) {
+			File part = new File(chunk.partFolder);
+			if (part.exists()) {
+				appendTree(part, outputFolder);
+				delete(part);
+			}
+		}
+	}
+
+	private static void appendTree(File src, String dst) throws IOException {
+		for (File f : src.listFiles()) {
+			String path = dst + "/" + f.getName();
+			if (f.isDirectory()) {
+				RotateWriter.checkOutput(path, false);
+				appendTree(f, path);
+			} else {
+				append(f, new File(path));
+			}
+		}
+	}
+
+	public static void append(File src, File dst) throws IOException {
+		FileChannel in = new FileInputStream(src).getChannel();
+		try {
+			FileChannel out = new FileOutputStream(dst, true).getChannel();
+			try {
+				long pos = 0;
+				long size = in.size();
+				while (pos < size)
+					pos += in.transferTo(pos, size - pos, out);
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void delete(File f) {
+		if (f.isDirectory())
+			for (File child : f.listFiles())
+				delete(child);
+		f.delete();
+	}
+
+	/**
+	 * Sequentially maps a region of a file through windows no larger than
+	 * {@link LogChunks#WINDOW_SIZE}, so regions above 2 GB can be read too.
+	 */
+	static class MappedInputStream extends InputStream {
+
+		public MappedInputStream(FileChannel channel, long start, long end) {
+			this.channel = channel;
+			this.pos = Math.max(start, 0);
+			this.end = end;
+		}
+
+		private FileChannel channel;
+		private MappedByteBuffer window = null;
+		private long pos;
+		private long end;
+
+		public long position() {
+			return pos;
+		}
+
+		private boolean ensureWindow() throws IOException {
+			if (window != null && window.hasRemaining()) return true;
+			if (pos >= end) return false;
+			window = channel.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(WINDOW_SIZE, end - pos));
+			return window.hasRemaining();
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (!ensureWindow()) return -1;
+			pos++;
+			return window.get() & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) return 0;
+			if (!ensureWindow()) return -1;
+			int n = Math.min(len, window.remaining());
+			window.get(b, off, n);
+			pos += n;
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return (int) Math.min(Integer.MAX_VALUE, end - pos);
+		}
+
+		@Override
+		public void close() throws IOException {
+			window = null;
+			channel.close();
+		}
+	}
+}
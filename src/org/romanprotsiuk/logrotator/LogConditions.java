@@ -30,6 +30,7 @@ class LogConditions {
 		this.includePatterns = includePatterns;
 		this.skipPatterns = skipPatterns;
 		this.dupPatterns = dupPatterns;
+		initMatchers();
 	}
 
 	public LogConditions(LogConditions conditions) {
@@ -37,6 +38,25 @@ class LogConditions {
 		this.includePatterns = conditions.includePatterns;
 		this.skipPatterns = conditions.skipPatterns;
 		this.dupPatterns = conditions.dupPatterns;
+		if (conditions.duplicates != null)
+			this.duplicates = new DuplicateIndex(conditions.duplicates);
+		this.seen = conditions.seen;
+		initMatchers();
+	}
+	
+	// reused for every entry, which makes an instance single-threaded
+	private PatternSet includeSet;
+	private PatternSet skipSet;
+	private PatternSet dupSet;
+	
+	private void initMatchers() {
+		includeSet = patternSet(includePatterns);
+		skipSet = patternSet(skipPatterns);
+		dupSet = patternSet(dupPatterns);
+	}
+	
+	private static PatternSet patternSet(Collection<Pattern> patterns) {
+		return patterns != null ? new PatternSet(patterns) : null;
 	}
 
 	private boolean checkTailLines;
@@ -47,6 +67,73 @@ class LogConditions {
 	
 	private Collection<Pattern> dupPatterns;
 	
+	public static final int DEFAULT_DUPLICATE_WINDOW = 1000;
+	
+	private DuplicateIndex duplicates = null;
+	private SeenSignatures seen = null;
+	
+	private boolean skipped = false;
+	
+	/**
+	 * Also treats an entry as duplicate when an entry with the same error
+	 * signature is among the last <code>maxEntries</code> entries (and not
+	 * older than <code>maxAge</code> ms, if positive). See
+	 * {@link DuplicateIndex}.
+	 */
+	public void setDuplicateWindow(int maxEntries, long maxAge) {
+		if (maxEntries <= 0 && seen != null)
+			maxEntries = DEFAULT_DUPLICATE_WINDOW;
+		duplicates = maxEntries > 0 ? new DuplicateIndex(maxEntries, maxAge) : null;
+		if (duplicates != null)
+			duplicates.setSeen(seen);
+	}
+	
+	/**
+	 * Also treats an entry as duplicate when its error signature is in
+	 * <code>seen</code>, see {@link DuplicateIndex}. Without a window, one
+	 * of {@link #DEFAULT_DUPLICATE_WINDOW} entries is used.
+	 */
+	public void setSeenSignatures(SeenSignatures seen) {
+		this.seen = seen;
+		if (duplicates == null && seen != null)
+			duplicates = new DuplicateIndex(DEFAULT_DUPLICATE_WINDOW, 0);
+		if (duplicates != null)
+			duplicates.setSeen(seen);
+	}
+	
+	public DuplicateIndex getDuplicateIndex() {
+		return duplicates;
+	}
+	
+	public boolean isCheckTailLines() {
+		return checkTailLines;
+	}
+	
+	/**
+	 * Whether entries are judged by their first line alone, with no tail
+	 * line filtering and no duplicate checks against earlier entries.
+	 */
+	public boolean isFirstLineOnly() {
+		return !checkTailLines && dupSet == null && duplicates == null;
+	}
+	
+	/**
+	 * Index of the line separator ending the first line, or the length of
+	 * <code>lines</code> if there's just one line.
+	 */
+	public static int firstLineEnd(CharSequence lines) {
+		return lineEnd(lines, 0);
+	}
+	
+	public static int lineEnd(CharSequence lines, int from) {
+		String nl = Properties.NL;
+		int last = lines.length() - nl.length();
+		for (int i = from; i <= last; i++)
+			if (lines.charAt(i) == nl.charAt(0) && (nl.length() == 1 || nl.charAt(1) == lines.charAt(i + 1)))
+				return i;
+		return lines.length();
+	}
+	
 	public static String firstLine(String lines) {
 		return getLine(lines, 0);
 	}
@@ -62,7 +149,59 @@ class LogConditions {
 		return nlIdx != -1 ? lines.substring(prevNlIdx, nlIdx) : lines.substring(prevNlIdx);
 	}
 	
+	/**
+	 * Parses the <code>yyyy-MM-dd H:mm:ss,SSS</code> timestamp
+	 * (<code>LOG_DATE_PART</code>) at the start of a line into milliseconds,
+	 * taking the local time as UTC. Returns -1 if there's no timestamp.
+	 */
+	public static long timestamp(CharSequence line) {
+		if (line == null || line.length() < 22) return -1;
+		int year = digits(line, 0, 4);
+		int month = digits(line, 5, 2);
+		int day = digits(line, 8, 2);
+		if (year < 0 || month < 1 || day < 1 || line.charAt(4) != '-' || line.charAt(7) != '-' || line.charAt(10) != ' ')
+			return -1;
+		int i = line.charAt(12) == ':' ? 12 : 13;
+		int hour = digits(line, 11, i - 11);
+		int minute = digits(line, i + 1, 2);
+		int second = digits(line, i + 4, 2);
+		int millis = line.length() >= i + 10 ? digits(line, i + 7, 3) : -1;
+		if (hour < 0 || minute < 0 || second < 0 || millis < 0 || line.charAt(i) != ':' || line.charAt(i + 3) != ':'
+				|| line.charAt(i + 6) != ',')
+			return -1;
+		return (((days(year, month, day) * 24 + hour) * 60 + minute) * 60 + second) * 1000 + millis;
+	}
+	
+	/**
+	 * Length of the timestamp at the start of the line, 0 if there's none.
+	 */
+	public static int timestampLength(CharSequence line) {
+		if (timestamp(line) < 0) return 0;
+		return line.charAt(12) == ':' ? 22 : 23;
+	}
+	
+	private static int digits(CharSequence s, int from, int count) {
+		int result = 0;
+		for (int i = from; i < from + count; i++) {
+			char c = s.charAt(i);
+			if (c < '0' || c > '9') return -1;
+			result = result * 10 + c - '0';
+		}
+		return result;
+	}
+	
+	// days since 1970-01-01 in the proleptic Gregorian calendar
+	private static long days(int year, int month, int day) {
+		long y = month <= 2 ? year - 1 : year;
+		long era = y / 400;
+		long yoe = y - era * 400;
+		long doy = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+		long doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+		return era * 146097 + doe - 719468;
+	}
+	
 	public String filter(String lines) {
+		skipped = false;
 		if (lines == null) return lines;
 		if (checkTailLines) {
 			StringBuilder result = new StringBuilder();
@@ -72,16 +211,55 @@ class LogConditions {
 			return result.length() != 0 ? result.toString() : null;
 		} else {
 			String line = firstLine(lines);
-			return include(line) && !skip(line) ? lines : null;
+			if (!include(line)) return null;
+			skipped = skip(line);
+			return skipped ? null : lines;
 		}
 	}
 
+	/**
+	 * Same as {@link #filter(String)} for conditions not checking tail lines,
+	 * but matching the first line in place.
+	 */
+	public boolean accept(CharSequence lines) {
+		return lines != null ? accept(lines, firstLineEnd(lines)) : accept(null, 0);
+	}
+	
+	public boolean accept(LogEntry entry) {
+		return entry != null ? accept(entry.getText(), entry.getFirstLineEnd()) : accept(null, 0);
+	}
+	
+	private boolean accept(CharSequence lines, int end) {
+		skipped = false;
+		if (lines == null) return false;
+		if (includeSet != null && includeSet.find(lines, 0, end) < 0) return false;
+		skipped = skipSet != null && skipSet.find(lines, 0, end) >= 0;
+		return !skipped;
+	}
+	
+	/**
+	 * Whether the entry last rejected by {@link #accept} or {@link #filter}
+	 * matched a skip pattern, rather than none of the include patterns.
+	 */
+	public boolean wasSkipped() {
+		return skipped;
+	}
+	
+	/**
+	 * The skip pattern matching the first line of the entry, null if none.
+	 */
+	public Pattern skippedBy(CharSequence lines) {
+		if (lines == null || skipSet == null) return null;
+		int idx = skipSet.find(lines, 0, firstLineEnd(lines));
+		return idx >= 0 ? skipSet.get(idx) : null;
+	}
+	
 	public boolean include(String line) {
-		return includePatterns == null || checkConditions(line, includePatterns);
+		return includeSet == null || line != null && includeSet.matches(line);
 	}
 
 	public boolean skip(String line) {
-		return skipPatterns != null && checkConditions(line, skipPatterns);
+		return skipSet != null && line != null && skipSet.matches(line);
 	}
 
 	public static boolean checkConditions(String line, Collection<Pattern> conditions) {
@@ -93,17 +271,27 @@ class LogConditions {
 	}
 	
 	public boolean isDuplicate(String lines, String previousLines) {
-		if (dupPatterns == null || lines == null || previousLines == null) return false;
-		String firstLine = firstLine(lines);
-		if (!checkConditions(firstLine, dupPatterns)) return false;
-		
+		return isDuplicate((CharSequence) lines, (CharSequence) previousLines);
+	}
+	
+	public boolean isDuplicate(CharSequence lines, CharSequence previousLines) {
+		return isDuplicate(lines != null ? new LogEntry(lines) : null, previousLines);
+	}
+	
+	public boolean isDuplicate(LogEntry entry, CharSequence previousLines) {
+		if (duplicates != null && duplicates.check(entry)) return true;
+		if (dupSet == null || entry == null || previousLines == null) return false;
+		CharSequence lines = entry.getText();
+		if (dupSet.find(lines, 0, entry.getFirstLineEnd()) < 0) return false;
+		return containsTokens(lines.toString(), previousLines.toString());
+	}
+	
+	private static boolean containsTokens(String lines, String previousLines) {
 		List<String> tokens = new ArrayList<String>();
 		
-		if (firstLine != null) {
-			String following = getLine(lines, 1);
-			int i = following.indexOf(": ");
-			tokens.add(i != -1 ? following.substring(i + 2) : following);
-		}
+		String following = getLine(lines, 1);
+		int i = following.indexOf(": ");
+		tokens.add(i != -1 ? following.substring(i + 2) : following);
 		
 		Matcher m = Properties.CAUSED_BY.matcher(lines);
 		while (m.find())
@@ -0,0 +1,228 @@
+package org.romanprotsiuk.logrotator;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A log entry: its first line plus continuation lines. The first line is
+ * parsed once, by {@link #PATTERN} (the {@link Properties#LOG} pattern with
+ * every part of <code>LOG_ENTRY_COMPOSITION</code> captured), keeping only
+ * match offsets; field values are cut from the text on demand. An entry
+ * whose first line was matched while detecting entry starts takes the
+ * offsets from that match, otherwise it's parsed when a field is first
+ * asked for.
+ * <p>
+ * Reusable, see {@link #reset(CharSequence)}, and not thread-safe.
+ */
+public class LogEntry {
+
+	/**
+	 * {@link Properties#LOG} with every composition part in a group of its
+	 * own; it matches the same lines.
+	 */
+	public static final Pattern PATTERN;
+
+	// group of every composition part in PATTERN, and of every LOG group
+	private static final Map<String, Integer> PART_GROUPS = new HashMap<String, Integer>();
+	private static final int[] LOG_GROUPS;
+
+	static {
+		StringBuilder pattern = new StringBuilder();
+		int[] logGroups = new int[Properties.LOG.matcher("").groupCount() + 1];
+		int group = 0;
+		int logGroup = 0;
+		for (String part : Properties.LOG_ENTRY_COMPOSITION) {
+			String re = Properties.LOG_PATTERN_PARTS.get(part);
+			pattern.append('(').append(re).append(')');
+			PART_GROUPS.put(part, ++group);
+			for (int i = Pattern.compile(re).matcher("").groupCount(); i > 0; i--)
+				logGroups[++logGroup] = ++group;
+		}
+		PATTERN = Pattern.compile(pattern.toString(), Properties.LOG.flags());
+		LOG_GROUPS = logGroups;
+	}
+
+	public static final String DATE_PART = "LOG_DATE_PART";
+	public static final String SEVERITY_PART = "SEVERITY_PART";
+	public static final String THREAD_NAME_PART = "THREAD_NAME_PART";
+	public static final String METHOD_PART = "METHOD_PART";
+	public static final String MESSAGE_PART = "MESSAGE_PART";
+
+	public LogEntry() {
+	}
+
+	public LogEntry(CharSequence text) {
+		reset(text);
+	}
+
+	private CharSequence text = null;
+	private int firstLineEnd = -1;
+	private String firstLine = null;
+	// 0 not parsed yet, 1 log entry, -1 not a log entry
+	private int parsed = 0;
+	private int[] starts = new int[PATTERN.matcher("").groupCount() + 1];
+	private int[] ends = new int[starts.length];
+	private Matcher matcher = null;
+
+	/**
+	 * Makes this the entry of <code>text</code>, which may still be
+	 * growing if it's a builder; the first line must be complete.
+	 */
+	public LogEntry reset(CharSequence text) {
+		this.text = text;
+		this.firstLineEnd = -1;
+		this.firstLine = null;
+		this.parsed = 0;
+		return this;
+	}
+
+	/**
+	 * Takes the offsets from <code>m</code>, a matcher of {@link #PATTERN}
+	 * which just matched the first line.
+	 */
+	void parsed(Matcher m) {
+		for (int i = 0; i < starts.length; i++) {
+			starts[i] = m.start(i);
+			ends[i] = m.end(i);
+		}
+		parsed = 1;
+	}
+
+	/**
+	 * Copies the parse of <code>other</code>, an entry with the same first
+	 * line.
+	 */
+	void parsed(LogEntry other) {
+		System.arraycopy(other.starts, 0, starts, 0, starts.length);
+		System.arraycopy(other.ends, 0, ends, 0, ends.length);
+		parsed = other.parsed;
+	}
+
+	public CharSequence getText() {
+		return text;
+	}
+
+	public int getFirstLineEnd() {
+		if (firstLineEnd < 0)
+			firstLineEnd = LogConditions.firstLineEnd(text);
+		return firstLineEnd;
+	}
+
+	public String getFirstLine() {
+		if (firstLine == null)
+			firstLine = text.subSequence(0, getFirstLineEnd()).toString();
+		return firstLine;
+	}
+
+	/**
+	 * Whether the first line matches {@link Properties#LOG}.
+	 */
+	public boolean isLogEntry() {
+		if (parsed == 0) {
+			if (matcher == null)
+				matcher = PATTERN.matcher(text);
+			if (matcher.reset(text).region(0, getFirstLineEnd()).find())
+				parsed(matcher);
+			else
+				parsed = -1;
+		}
+		return parsed > 0;
+	}
+
+	/**
+	 * Start of group <code>group</code> of {@link Properties#LOG}, -1 if it
+	 * didn't match or this isn't a log entry.
+	 */
+	public int start(int group) {
+		return isLogEntry() ? starts[LOG_GROUPS[group]] : -1;
+	}
+
+	public int end(int group) {
+		return isLogEntry() ? ends[LOG_GROUPS[group]] : -1;
+	}
+
+	/**
+	 * Value of group <code>group</code> of {@link Properties#LOG}.
+	 */
+	public String group(int group) {
+		return value(isLogEntry() ? LOG_GROUPS[group] : -1);
+	}
+
+	/**
+	 * Text matched by a part of <code>LOG_ENTRY_COMPOSITION</code>, e.g.
+	 * {@link #SEVERITY_PART}, with surrounding spaces.
+	 */
+	public String getPart(String part) {
+		Integer group = PART_GROUPS.get(part);
+		return value(group != null && isLogEntry() ? group : -1);
+	}
+
+	/**
+	 * Start of a part of <code>LOG_ENTRY_COMPOSITION</code>, -1 if it
+	 * didn't match.
+	 */
+	public int partStart(String part) {
+		Integer group = PART_GROUPS.get(part);
+		return group != null && isLogEntry() ? starts[group] : -1;
+	}
+
+	public int partEnd(String part) {
+		Integer group = PART_GROUPS.get(part);
+		return group != null && isLogEntry() ? ends[group] : -1;
+	}
+
+	private String value(int group) {
+		if (group < 0 || starts[group] < 0) return null;
+		return text.subSequence(starts[group], ends[group]).toString();
+	}
+
+	private String trimmedPart(String part) {
+		String value = getPart(part);
+		return value != null ? value.trim() : null;
+	}
+
+	/**
+	 * Day of the entry, the first group of {@link Properties#LOG}.
+	 */
+	public String getDate() {
+		return group(1);
+	}
+
+	public String getSeverity() {
+		return trimmedPart(SEVERITY_PART);
+	}
+
+	public String getThread() {
+		return trimmedPart(THREAD_NAME_PART);
+	}
+
+	public String getMethod() {
+		return group(2);
+	}
+
+	public String getClassName() {
+		return group(3);
+	}
+
+	public String getLineNumber() {
+		return group(4);
+	}
+
+	public String getMessage() {
+		return group(5);
+	}
+
+	/**
+	 * See {@link LogConditions#timestamp(CharSequence)}.
+	 */
+	public long getTimestamp() {
+		return LogConditions.timestamp(text);
+	}
+
+	@Override
+	public String toString() {
+		return text != null ? text.toString() : null;
+	}
+}
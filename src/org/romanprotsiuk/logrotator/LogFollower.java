@@ -0,0 +1,289 @@
+package org.romanprotsiuk.logrotator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Keeps rotating a live log as it grows. Only complete lines are consumed;
+ * the byte offset after the last consumed line, the entry still being
+ * collected, the previous entry (for duplicate checks), output held back
+ * and the current date are saved to a checkpoint file, with the lengths of
+ * the outputs after flushing them. A restarted follower truncates the
+ * outputs back to those lengths, as {@link RotationCheckpoint} does, and
+ * continues exactly where the checkpoint was taken, so entries written
+ * after it are neither lost nor repeated.
+ * <p>
+ * Truncation (the file getting shorter than the offset) and rename by the
+ * appender (a different file key at the same path, or where the file system
+ * has no file keys, a size other than the open handle's or a change without
+ * growing) are handled by draining the old handle, completing the pending
+ * entry and starting over at the beginning of the new file.
+ */
+public class LogFollower implements Runnable {
+
+	public static final long DEFAULT_POLL_INTERVAL = 1000;
+	public static final long DEFAULT_CHECKPOINT_INTERVAL = 5000;
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	LogFollower(LogRotator parent, File file, String outputFolder, File checkpoint) {
+		this.worker = new LogRotator(parent);
+		this.file = file;
+		this.outputFolder = outputFolder;
+		this.checkpoint = checkpoint;
+	}
+
+	private LogRotator worker;
+	private File file;
+	private String outputFolder;
+	private File checkpoint;
+	private long pollInterval = DEFAULT_POLL_INTERVAL;
+	private long checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+	private volatile boolean stopped = false;
+
+	private RotateWriter w;
+	private FileChannel channel = null;
+	private String fileKey = "";
+	// size and modification time of the file at the path as last seen
+	private long lastLength = 0;
+	private long lastModified = 0;
+	private long offset = 0;
+	private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+	private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+	private long lastCheckpoint = 0;
+	private boolean dirty = false;
+	// lengths of the outputs as of the last save, and the outputs written to since
+	private java.util.Properties lengths = new java.util.Properties();
+	private Set<String> outputs = new HashSet<String>();
+
+	public void setPollInterval(long pollInterval) {
+		this.pollInterval = pollInterval;
+	}
+
+	public void setCheckpointInterval(long checkpointInterval) {
+		this.checkpointInterval = checkpointInterval;
+	}
+
+	/**
+	 * Offset right after the last consumed line of the followed file.
+	 */
+	public long getOffset() {
+		return offset;
+	}
+
+	public void stop() {
+		stopped = true;
+	}
+
+	@Override
+	public void run() {
+		try {
+			follow();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private void follow() throws IOException {
+		RotateWriter.checkOutput(outputFolder, false);
+		w = worker.createRotateWriter(file.getName());
+		w.trackOutputs(outputs);
+		try {
+			restore();
+			RotationCheckpoint.saveOutputs(lengths, new File(outputFolder), checkpoint);
+			// the starting point, what a crash before the next checkpoint goes back to
+			save();
+			while (!stopped) {
+				if (readAvailable()) {
+					if (System.currentTimeMillis() - lastCheckpoint >= checkpointInterval)
+						save();
+					continue;
+				}
+				checkRotation();
+				if (dirty)
+					save();
+				try {
+					Thread.sleep(pollInterval);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					stopped = true;
+				}
+			}
+			save();
+			LogRotator.logger.debug("Stopped following " + file.getName() + " at " + offset);
+		} finally {
+			try {
+				closeChannel();
+			} finally {
+				w.close();
+			}
+		}
+	}
+
+	private boolean readAvailable() throws IOException {
+		if (channel == null) return false;
+		buffer.clear();
+		int n = channel.read(buffer, offset + pending.size());
+		if (n <= 0) return false;
+
+		byte[] bytes = buffer.array();
+		int start = 0;
+		for (int i = 0; i < n; i++)
+			if (bytes[i] == '\n') {
+				pending.write(bytes, start, i - start);
+				completeLine();
+				start = i + 1;
+			}
+		pending.write(bytes, start, n - start);
+		return true;
+	}
+
+	private void completeLine() throws IOException {
+		String line = pending.toString();
+		if (line.endsWith("\r"))
+			line = line.substring(0, line.length() - 1);
+		offset += pending.size() + 1;
+		worker.getMetrics().bytesRead(null, pending.size() + 1);
+		pending.reset();
+
+		if (w.isLogStart(line))
+			worker.completeEntry(w, outputFolder);
+		w.addLine(line);
+		dirty = true;
+	}
+
+	private void checkRotation() throws IOException {
+		if (!file.exists()) return;
+		if (channel == null) {
+			open(0);
+			return;
+		}
+		boolean renamed = replaced();
+		if (!renamed && file.length() >= offset + pending.size()) return;
+
+		LogRotator.logger.info(file.getName() + (renamed ? " was rotated" : " was truncated") + ", following from the start");
+		// drain the old handle, whatever is left belongs to the last entry
+		while (readAvailable());
+		if (pending.size() != 0)
+			completeLine();
+		worker.completeEntry(w, outputFolder);
+		closeChannel();
+		open(0);
+		dirty = true;
+	}
+
+	/**
+	 * Whether the file at the path isn't the open one any more.
+	 */
+	private boolean replaced() throws IOException {
+		String key = fileKey(file);
+		if (key.length() != 0 || fileKey.length() != 0) return !key.equals(fileKey);
+		// the handle's size is taken around the path's, as the appender may be writing
+		long before = channel.size();
+		long length = file.length();
+		long modified = file.lastModified();
+		boolean replaced = length < before || length > channel.size()
+				|| length == lastLength && modified != lastModified;
+		lastLength = length;
+		lastModified = modified;
+		return replaced;
+	}
+
+	private void open(long position) throws IOException {
+		if (!file.exists()) return;
+		channel = new RandomAccessFile(file, "r").getChannel();
+		fileKey = fileKey(file);
+		lastLength = file.length();
+		lastModified = file.lastModified();
+		offset = position;
+		pending.reset();
+	}
+
+	private void closeChannel() throws IOException {
+		if (channel == null) return;
+		channel.close();
+		channel = null;
+	}
+
+	private static String fileKey(File file) throws IOException {
+		Object key = Files.readAttributes(file.toPath(), BasicFileAttributes.class).fileKey();
+		return key != null ? key.toString() : "";
+	}
+
+	private void restore() throws IOException {
+		if (!checkpoint.exists()) {
+			open(0);
+			return;
+		}
+		java.util.Properties p = new java.util.Properties();
+		InputStream is = new FileInputStream(checkpoint);
+		try {
+			p.load(is);
+		} finally {
+			is.close();
+		}
+		RotationCheckpoint.restoreOutputs(p, new File(outputFolder), checkpoint);
+		long position = Long.parseLong(p.getProperty("offset", "0"));
+		String entry = p.getProperty("entry");
+		if (entry != null)
+			w.addLine(entry, false);
+		w.setPreviousLines(p.getProperty("previous"));
+		String initial = p.getProperty("initial");
+		if (initial != null)
+			w.initialLog = new StringBuilder(initial);
+		w.resumeDate(p.getProperty("date"), outputFolder);
+
+		if (file.exists() && fileKey(file).equals(p.getProperty("fileKey", "")) && file.length() >= position) {
+			open(position);
+			LogRotator.logger.debug("Resuming " + file.getName() + " at " + position);
+		} else {
+			LogRotator.logger.warn(file.getName() + " was replaced since the last checkpoint, following from the start");
+			worker.completeEntry(w, outputFolder);
+			open(0);
+		}
+	}
+
+	private void save() throws IOException {
+		w.flush();
+
+		java.util.Properties p = new java.util.Properties();
+		p.setProperty("file", file.getPath());
+		p.setProperty("fileKey", fileKey);
+		p.setProperty("offset", String.valueOf(offset));
+		if (w.b.length() != 0)
+			p.setProperty("entry", w.b.toString());
+		if (w.getPreviousLines() != null)
+			p.setProperty("previous", w.getPreviousLines());
+		if (w.initialLog != null)
+			p.setProperty("initial", w.initialLog.toString());
+		if (w.date != null)
+			p.setProperty("date", w.date);
+		RotationCheckpoint.saveOutputs(lengths, new File(outputFolder), outputs, w);
+		p.putAll(lengths);
+
+		File tmp = new File(checkpoint.getPath() + ".tmp");
+		OutputStream os = new FileOutputStream(tmp);
+		try {
+			p.store(os, "LogFollower checkpoint");
+		} finally {
+			os.close();
+		}
+		Files.move(tmp.toPath(), checkpoint.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		lastCheckpoint = System.currentTimeMillis();
+		dirty = false;
+	}
+}
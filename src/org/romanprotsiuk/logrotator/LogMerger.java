@@ -0,0 +1,111 @@
+package org.romanprotsiuk.logrotator;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.regex.Matcher;
+
+/**
+ * Merges logs into one chronological stream. Every input is read entry by
+ * entry (first line plus continuation lines), and the entry with the
+ * earliest timestamp among the inputs' current ones is written next, using
+ * a heap over the inputs. Entries with equal timestamps keep input order.
+ * Memory holds one entry and one read buffer per input, whatever the size
+ * of the inputs.
+ * <p>
+ * Lines before the first entry of an input sort first; an entry without a
+ * parseable timestamp sorts with the entry before it.
+ */
+class LogMerger {
+
+	private static final int READ_BUFFER_SIZE = 1024 * 1024;
+
+	public LogMerger(File[] files) {
+		this.files = files;
+	}
+
+	private File[] files;
+	private char[] chars = new char[0];
+
+	private class Source {
+		public Source(File file, int index) throws IOException {
+			this.index = index;
+			this.reader = new BufferedReader(new InputStreamReader(Compression.open(file)), READ_BUFFER_SIZE);
+			this.next = reader.readLine();
+		}
+
+		private int index;
+		private BufferedReader reader;
+		private String next;
+		private Matcher logMatcher = Properties.LOG.matcher("");
+		public StringBuilder entry = new StringBuilder();
+		public long time = Long.MIN_VALUE;
+
+		/**
+		 * Reads the next entry, false at the end of the input.
+		 */
+		public boolean advance() throws IOException {
+			entry.setLength(0);
+			if (next == null) return false;
+			do {
+				entry.append(next).append(Properties.NL);
+				next = reader.readLine();
+			} while (next != null && !Properties.LOG_START.isLogStart(next, logMatcher));
+			long t = LogConditions.timestamp(entry);
+			if (t >= 0)
+				time = Math.max(time, t);
+			return true;
+		}
+
+		public void close() throws IOException {
+			reader.close();
+		}
+	}
+
+	public void merge(String output) throws IOException {
+		PriorityQueue<Source> heap = new PriorityQueue<Source>(Math.max(1, files.length), new Comparator<Source>() {
+			@Override
+			public int compare(Source a, Source b) {
+				if (a.time != b.time) return a.time < b.time ? -1 : 1;
+				return a.index - b.index;
+			}
+		});
+		Writer w = RotateWriter.createWriter(output, false);
+		try {
+			for (int i = 0; i < files.length; i++) {
+				LogRotator.logger.debug("Merging: " + files[i].getName());
+				Source s = new Source(files[i], i);
+				if (s.advance())
+					heap.add(s);
+				else
+					s.close();
+			}
+			while (!heap.isEmpty()) {
+				Source s = heap.poll();
+				write(w, s.entry);
+				if (s.advance())
+					heap.add(s);
+				else
+					s.close();
+			}
+		} finally {
+			try {
+				for (Source s : heap)
+					s.close();
+			} finally {
+				w.close();
+			}
+		}
+	}
+
+	private void write(Writer w, StringBuilder sb) throws IOException {
+		if (chars.length < sb.length())
+			chars = new char[Math.max(sb.length(), 2 * chars.length)];
+		sb.getChars(0, sb.length(), chars, 0);
+		w.write(chars, 0, sb.length());
+	}
+}
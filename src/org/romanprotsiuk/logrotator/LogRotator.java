@@ -2,21 +2,23 @@ package org.romanprotsiuk.logrotator;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileFilter;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
 import java.io.Writer;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Calendar;
 import java.util.Collection;
-import java.util.Date;
-import java.util.GregorianCalendar;
-import java.util.LinkedList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
 import org.apache.log4j.Logger;
@@ -26,34 +28,103 @@ public class LogRotator {
 	static Logger logger = Logger.getLogger(LogRotator.class);
 
 	public static void main(String[] args) throws Exception {
+		if (args.length == 4) {
+			extractWindow(args[0], args[1], LogWindow.parseTime(args[2]), LogWindow.parseTime(args[3]));
+			return;
+		}
 		String logsFolder = "/Users/romanprotsiuk/logs/webapp_latest";
-		splitByDate(logsFolder + "/webapp.log", logsFolder + "/filtered");
-		extractErrors(logsFolder + "/webapp.log", logsFolder + "/errors");
+		splitByDateAndExtractErrors(logsFolder + "/webapp.log", logsFolder + "/filtered", logsFolder + "/errors");
 	}
 
 	public static void splitByDate(String inFolder, String outFolder) throws Exception {
+		LogRotator rotator = dateRotator();
+		ExecutorService executor = rotator.rotate(inFolder, outFolder);
+		executor.shutdown();
+		rotator.startReporting();
+	}
+
+	public static void extractErrors(String inFolder, String outFolder) throws Exception {
+		LogRotator rotator = errorRotator();
+		ExecutorService executor = rotator.rotate(inFolder, outFolder);
+		executor.shutdown();
+		rotator.startReporting();
+	}
+
+	/**
+	 * Does {@link #splitByDate(String, String)} and
+	 * {@link #extractErrors(String, String)} reading the input once, see
+	 * {@link RotationJobs}.
+	 */
+	public static void splitByDateAndExtractErrors(String inFolder, String dateFolder, String errorFolder) throws Exception {
+		LogRotator dates = dateRotator();
+		LogRotator errors = errorRotator();
+		ExecutorService executor = new RotationJobs().add(dates, dateFolder).add(errors, errorFolder).rotate(inFolder);
+		executor.shutdown();
+		dates.startReporting();
+		errors.startReporting();
+	}
+
+	private static LogRotator dateRotator() {
 		LogRotator rotator = new LogRotator(null, Properties.IGNORE_LIST);
 		rotator.splitByError = false;
 		rotator.ignoreDuplicates = false;
+		return rotator;
+	}
+
+	private static LogRotator errorRotator() {
+		LogRotator rotator = new LogRotator(Arrays.asList(Properties.errorPattern()));
+		rotator.splitByError = true;
+		rotator.ignoreDuplicates = false;
+		return rotator;
+	}
+
+	/**
+	 * Like {@link #extractErrors(String, String)}, but writes every error
+	 * signature out once, however many files and runs it recurs in, and
+	 * counts it after that, see {@link #setSeenSignatures(String)}.
+	 */
+	public static void extractNewErrors(String inFolder, String outFolder, String signaturesFile) throws Exception {
+		LogRotator rotator = errorRotator();
+		rotator.ignoreDuplicates = true;
+		rotator.setSeenSignatures(signaturesFile);
 		ExecutorService executor = rotator.rotate(inFolder, outFolder);
 		executor.shutdown();
-		rotator.startProgressTask();
+		rotator.startReporting();
 	}
 
-	public static void extractErrors(String inFolder, String outFolder) throws Exception {
+	/**
+	 * Counts errors by signature instead of writing them out and writes the
+	 * most frequent ones to <code>reportFile</code>, see {@link ErrorIndex}.
+	 */
+	public static void summarizeErrors(String inFolder, String reportFile) throws Exception {
 		LogRotator rotator = new LogRotator(Arrays.asList(Properties.errorPattern()));
 		rotator.splitByError = true;
 		rotator.ignoreDuplicates = false;
-		ExecutorService executor = rotator.rotate(inFolder, outFolder);
+		rotator.setAggregateErrors(ErrorIndex.DEFAULT_MAX_MEMORY);
+		File report = new File(reportFile).getAbsoluteFile();
+		ExecutorService executor = rotator.rotate(inFolder, report.getParent());
 		executor.shutdown();
-		rotator.startProgressTask();
+		rotator.startReporting();
+		executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		rotator.writeErrorSummary(report.getPath(), ErrorIndex.DEFAULT_REPORT_LIMIT);
+	}
+
+	/**
+	 * Splits by date the entries of <code>inputFile</code> logged from
+	 * <code>from</code> to <code>to</code>, see {@link #rotate(String, String, long, long)}.
+	 */
+	public static void extractWindow(String inputFile, String outFolder, long from, long to) throws Exception {
+		LogRotator rotator = new LogRotator(null, Properties.IGNORE_LIST);
+		rotator.splitByError = false;
+		rotator.ignoreDuplicates = false;
+		rotator.rotate(inputFile, outFolder, from, to);
 	}
 
 	public static void extractLogEntries(String inFolder, String outFolder) throws Exception {
 		LogRotator rotator = new LogRotator(Arrays.asList(Properties.LOG), null, null, true);
 		ExecutorService executor = rotator.rotate(inFolder, outFolder);
 		executor.shutdown();
-		rotator.startProgressTask();
+		rotator.startReporting();
 	}
 
 	public static void filterStackTraces(String inFolder, String outFolder) throws Exception {
@@ -61,7 +132,7 @@ public class LogRotator {
 				Pattern.MULTILINE)), null, true);
 		ExecutorService executor = rotator.rotate(inFolder, outFolder);
 		executor.shutdown();
-		rotator.startProgressTask();
+		rotator.startReporting();
 	}
 
 	public LogRotator() {
@@ -82,10 +153,12 @@ public class LogRotator {
 
 	public LogRotator(Collection<Pattern> includePatterns, Collection<Pattern> skipPatterns, Collection<Pattern> dupPatterns, boolean checkTailLines) {
 		this.conditions = new LogConditions(checkTailLines, includePatterns, skipPatterns, dupPatterns);
+		this.metrics.setWriterPool(writers);
 	}
 
 	public LogRotator(LogConditions conditions) {
 		this.conditions = new LogConditions(conditions);
+		this.metrics.setWriterPool(writers);
 	}
 	
 	public LogRotator(LogRotator rotator) {
@@ -93,14 +166,227 @@ public class LogRotator {
 		this.splitByError = rotator.splitByError;
 		this.ignoreDuplicates = rotator.ignoreDuplicates;
 		this.percLimit = rotator.percLimit;
+		this.chunkSize = rotator.chunkSize;
+		this.writers = rotator.writers;
+		this.compressOutput = rotator.compressOutput;
+		this.metrics = rotator.metrics;
+		this.errors = rotator.errors;
+		this.pipelineWorkers = rotator.pipelineWorkers;
+		this.indexInputs = rotator.indexInputs;
+		this.zeroCopy = rotator.zeroCopy;
+		this.checkpointFile = rotator.checkpointFile;
+		this.commitInterval = rotator.commitInterval;
+		this.checkpoint = rotator.checkpoint;
+		this.storeOutput = rotator.storeOutput;
+		this.analytics = rotator.analytics;
+		this.seen = rotator.seen;
 	}
 	
 	private boolean ignoreDuplicates = false;
 	
+	/**
+	 * Drops duplicate entries instead of writing them.
+	 */
+	public void setIgnoreDuplicates(boolean ignoreDuplicates) {
+		this.ignoreDuplicates = ignoreDuplicates;
+	}
+	
 	private boolean splitByError = true;
 	
+	/**
+	 * Chooses between per-error outputs (the default) and per-date outputs.
+	 */
+	public void setSplitByError(boolean splitByError) {
+		this.splitByError = splitByError;
+	}
+	
 	private int percLimit = 0;
 	
+	private long chunkSize = 0;
+	
+	/**
+	 * Enables intra-file parallel rotation: files larger than
+	 * <code>chunkSize</code> bytes are split into chunks on log entry
+	 * boundaries and the chunks are rotated concurrently. Zero disables it.
+	 */
+	public void setChunkSize(long chunkSize) {
+		this.chunkSize = chunkSize;
+	}
+	
+	private WriterPool writers = new WriterPool();
+	
+	private boolean compressOutput = false;
+	
+	/**
+	 * Writes per-date and per-error outputs gzip-compressed. Compression
+	 * runs on a separate thread pool, see {@link Compression}.
+	 */
+	public void setCompressOutput(boolean compressOutput) {
+		this.compressOutput = compressOutput;
+	}
+	
+	/**
+	 * Limits the number of output files kept open at once in error-splitting
+	 * mode; least recently used ones are closed first.
+	 */
+	public void setMaxOpenWriters(int maxOpenWriters) {
+		this.writers = new WriterPool(maxOpenWriters);
+		metrics.setWriterPool(writers);
+	}
+	
+	private int pipelineWorkers = 0;
+	
+	/**
+	 * Rotates every file in stages, with up to about twice
+	 * <code>workers</code> batches of entries being filtered and given
+	 * their outputs at once, on threads shared by all files, while others
+	 * read and write, see {@link RotatePipeline}. Zero rotates files on a
+	 * single thread each.
+	 */
+	public void setPipelineWorkers(int pipelineWorkers) {
+		this.pipelineWorkers = pipelineWorkers;
+	}
+	
+	private boolean indexInputs = false;
+	
+	/**
+	 * Writes a sparse index next to every uncompressed input rotated as a
+	 * whole, which {@link #select(String, String, long, long, String...)}
+	 * uses later, see {@link OffsetIndex}. Chunked inputs aren't indexed.
+	 */
+	public void setIndexInputs(boolean indexInputs) {
+		this.indexInputs = indexInputs;
+	}
+	
+	private boolean zeroCopy = true;
+	
+	/**
+	 * Splits uncompressed inputs by date on bytes when nothing but their
+	 * first lines has to be looked at, see {@link DateSplitter}. On by
+	 * default.
+	 */
+	public void setZeroCopy(boolean zeroCopy) {
+		this.zeroCopy = zeroCopy;
+	}
+	
+	private boolean storeOutput = false;
+	private EntryStore.Writer store = null;
+	
+	/**
+	 * Writes accepted entries to an {@link EntryStore} per input,
+	 * <code>&lt;input name&gt;.les</code>, instead of per-date or per-error
+	 * text outputs, for querying them again with
+	 * {@link #query(String, String, EntryStore.Filter)}.
+	 */
+	public void setStoreOutput(boolean storeOutput) {
+		this.storeOutput = storeOutput;
+	}
+	
+	private String checkpointFile = null;
+	private long commitInterval = RotationCheckpoint.DEFAULT_COMMIT_INTERVAL;
+	private RotationCheckpoint checkpoint = null;
+	private RotationCheckpoint.Cursor cursor = null;
+	
+	/**
+	 * Commits the progress of {@link #rotate(String, String)} to
+	 * <code>checkpointFile</code> about every <code>commitInterval</code>
+	 * ms, so a rerun after a failure skips the inputs already rotated and
+	 * resumes the others where the last commit left them, see
+	 * {@link RotationCheckpoint}. Inputs are rotated whole and on a single
+	 * thread each; outputs can't be compressed or aggregated. Null turns
+	 * it off.
+	 */
+	public void setCheckpoint(String checkpointFile, long commitInterval) {
+		this.checkpointFile = checkpointFile;
+		this.commitInterval = commitInterval;
+	}
+	
+	public void setCheckpoint(String checkpointFile) {
+		setCheckpoint(checkpointFile, RotationCheckpoint.DEFAULT_COMMIT_INTERVAL);
+	}
+	
+	private RotationMetrics metrics = new RotationMetrics();
+	
+	private ErrorIndex errors = null;
+	
+	/**
+	 * In error-splitting mode, counts accepted entries by error signature
+	 * in an index of about <code>maxMemory</code> bytes (spilled to disk
+	 * beyond that) instead of writing them. Zero turns it off.
+	 */
+	public void setAggregateErrors(long maxMemory) {
+		this.errors = maxMemory > 0 ? new ErrorIndex(maxMemory) : null;
+	}
+	
+	/**
+	 * Writes the <code>limit</code> most frequent error signatures counted
+	 * so far, once all files are rotated.
+	 */
+	public void writeErrorSummary(String reportFile, int limit) throws IOException {
+		if (errors == null)
+			throw new RuntimeException("Error aggregation is off");
+		errors.writeReport(new File(reportFile), limit);
+	}
+	
+	private EntryAnalytics analytics = null;
+	
+	/**
+	 * Counts the entries written per minute and severity and the
+	 * <code>topSignatures</code> most frequent error signatures as they're
+	 * rotated, see {@link EntryAnalytics}. Zero turns it off.
+	 */
+	public void setAnalytics(int topSignatures) {
+		this.analytics = topSignatures > 0 ? new EntryAnalytics(topSignatures) : null;
+	}
+	
+	/**
+	 * Writes the analytics gathered so far, once all files are rotated: as
+	 * JSON if <code>reportFile</code> ends with <code>.json</code>, as CSV
+	 * otherwise.
+	 */
+	public void writeAnalytics(String reportFile) throws IOException {
+		if (analytics == null)
+			throw new RuntimeException("Analytics are off");
+		analytics.writeReport(new File(reportFile));
+	}
+	
+	/**
+	 * Counters of this job, shared with the workers rotating its files.
+	 */
+	public RotationMetrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * Enables windowed duplicate detection by error signature, see
+	 * {@link DuplicateIndex}. With <code>ignoreDuplicates</code> repeated
+	 * errors are dropped and summarized in a <code>.duplicates.log</code>
+	 * file instead.
+	 */
+	public void setDuplicateWindow(int maxEntries, long maxAge) {
+		conditions.setDuplicateWindow(maxEntries, maxAge);
+	}
+	
+	private SeenSignatures seen = null;
+	
+	/**
+	 * Remembers error signatures in <code>signaturesFile</code> across
+	 * files and runs: with <code>ignoreDuplicates</code> an error whose
+	 * signature was seen before is only counted in the
+	 * <code>.duplicates.log</code> file, so each is written out in full
+	 * once. Sized for <code>expectedSignatures</code>, see
+	 * {@link SeenSignatures}, and saved after every file. Null turns it off.
+	 */
+	public void setSeenSignatures(String signaturesFile, long expectedSignatures) throws IOException {
+		seen = signaturesFile != null ? SeenSignatures.open(new File(signaturesFile), expectedSignatures,
+				SeenSignatures.DEFAULT_FALSE_POSITIVES) : null;
+		conditions.setSeenSignatures(seen);
+	}
+	
+	public void setSeenSignatures(String signaturesFile) throws IOException {
+		setSeenSignatures(signaturesFile, SeenSignatures.DEFAULT_EXPECTED);
+	}
+	
 	public static ExecutorService getExecutor() {
 		final Runtime runtime = Runtime.getRuntime();
         final int processorsCount = runtime.availableProcessors();
@@ -119,7 +405,7 @@ public class LogRotator {
 		try {
 			for (final File file : files) {
 				logger.debug("Merging: " + file.getName());
-				BufferedReader r = new BufferedReader(new FileReader(file));
+				BufferedReader r = new BufferedReader(new InputStreamReader(Compression.open(file)));
 				int i = 0;
 				int size = 0;
 				int bufferSize = 4096;
@@ -138,186 +424,614 @@ public class LogRotator {
 		}
 	}
 	
+	/**
+	 * Merges the input files into one stream ordered by entry timestamps,
+	 * e.g. logs of several nodes, see {@link LogMerger}.
+	 */
+	public void mergeByTime(String inputPath, String output) throws IOException {
+		File in = new File(inputPath);
+		if (!in.exists()) {
+			throw new RuntimeException("Input doesn't exist");
+		}
+		File[] files = in.isDirectory() ? in.listFiles(RotateWriter.regularFiles) : new File[] {in};
+		Arrays.sort(files);
+		new LogMerger(files).merge(output);
+	}
+	
+	/**
+	 * Writes the entries of <code>inputFile</code> logged from
+	 * <code>from</code> (inclusive) to <code>to</code> (exclusive) with one
+	 * of the <code>severities</code> (all if none are given) to
+	 * <code>output</code>, reading only the blocks its index points to.
+	 * Returns the number of entries written.
+	 */
+	public long select(String inputFile, String output, long from, long to, String... severities) throws IOException {
+		File file = new File(inputFile);
+		if (!file.isFile() || Compression.isCompressed(file)) {
+			throw new RuntimeException("Input doesn't exist or is compressed: " + inputFile);
+		}
+		Writer w = RotateWriter.createWriter(output, false);
+		try {
+			return OffsetIndex.select(file, from, to, OffsetIndex.severities(severities), w);
+		} finally {
+			w.close();
+		}
+	}
+	
+	/**
+	 * Writes the entries of the stores in <code>inputPath</code>, a store
+	 * or a folder of them, selected by <code>filter</code> to
+	 * <code>output</code>, reading only the columns the filter tests, see
+	 * {@link EntryStore}. Returns the number of entries written.
+	 */
+	public long query(String inputPath, String output, EntryStore.Filter filter) throws IOException {
+		File in = new File(inputPath);
+		if (!in.exists()) {
+			throw new RuntimeException("Input doesn't exist: " + inputPath);
+		}
+		File[] files = in.isDirectory() ? in.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File file) {
+				return file.isFile() && file.getName().endsWith(EntryStore.EXTENSION);
+			}
+		}) : new File[] {in};
+		Arrays.sort(files);
+		long selected = 0;
+		Writer w = RotateWriter.createWriter(output, false);
+		try {
+			for (File file : files) {
+				EntryStore.Reader r = new EntryStore.Reader(file);
+				try {
+					selected += r.scan(filter, w);
+				} finally {
+					r.close();
+				}
+			}
+		} finally {
+			w.close();
+		}
+		return selected;
+	}
+	
 	public ExecutorService rotate(String inputPath, String outputFolder) throws Exception {
 		return rotate(inputPath, outputFolder, true);
 	}
 	
 	public ExecutorService rotate(String inputPath, String outputFolder, boolean multithread) throws Exception {
+		ExecutorService executor = multithread ? getExecutor() : null;
+		for (Rotator task : plan(inputPath, outputFolder, multithread)) {
+			if (multithread) {
+				metrics.fileQueued(task.getName(), task.length);
+				executor.execute(task);
+			} else
+				rotate(task.file, outputFolder);
+		}
+		return executor;
+	}
+	
+	/**
+	 * Starts rotating the files of <code>inputPath</code> on an executor of
+	 * their own and returns a handle with a future per file, see
+	 * {@link RotationJob}.
+	 */
+	public RotationJob submit(String inputPath, String outputFolder) throws IOException {
+		RotationJob job = new RotationJob(getExecutor(), metrics);
+		for (Rotator task : plan(inputPath, outputFolder, true)) {
+			task.job = job;
+			metrics.fileQueued(task.getName(), task.length);
+			job.add(task.file, task, task.length);
+		}
+		job.start();
+		return job;
+	}
+	
+	/**
+	 * Files and chunks to rotate, the largest first: the makespan of a pool
+	 * is then at most a third longer than the best possible, while a large
+	 * file left to the end runs alone after the rest are done.
+	 */
+	private List<Rotator> plan(String inputPath, String outputFolder, boolean chunked) throws IOException {
 		File in = new File(inputPath);
 		if (!in.exists()) {
 			throw new RuntimeException("Input doesn't exist: " + inputPath);
 		}
 		
 		RotateWriter.checkOutput(outputFolder, false);
+		checkpoint = null;
+		if (checkpointFile != null) {
+			if (compressOutput || errors != null || analytics != null || seen != null || storeOutput)
+				throw new RuntimeException("Checkpoints don't support compressed, aggregated or stored outputs");
+			checkpoint = RotationCheckpoint.open(new File(checkpointFile), new File(outputFolder), commitInterval);
+		}
 		
 		File[] files = in.isDirectory() ? in.listFiles(RotateWriter.regularFiles) : new File[] {in};
-		rotators = new LinkedList<Rotator>();
-		ExecutorService executor = multithread ? getExecutor() : null;
+		List<Rotator> tasks = new ArrayList<Rotator>();
 		for (File file : files) {
-			if (multithread) {
-				Rotator r = new Rotator(this, file, outputFolder);
-				rotators.add(r);
-				executor.execute(r);
+			if (checkpoint != null && checkpoint.isDone(file)) {
+				logger.debug("Already rotated: " + file.getName());
+				continue;
+			}
+			if (chunked && checkpoint == null && chunkSize > 0 && file.length() > chunkSize && !Compression.isCompressed(file)) {
+				LogChunks chunks = new LogChunks(file, outputFolder, chunkSize);
+				for (LogChunks.Chunk chunk : chunks.getChunks())
+					tasks.add(new Rotator(this, file, outputFolder, chunks, chunk, chunk.length()));
 			} else
-				rotate(file, outputFolder);
+				tasks.add(new Rotator(this, file, outputFolder, null, null, Compression.uncompressedLength(file)));
 		}
-		return executor;
+		Collections.sort(tasks, new Comparator<Rotator>() {
+			@Override
+			public int compare(Rotator a, Rotator b) {
+				return a.length < b.length ? 1 : a.length > b.length ? -1 : 0;
+			}
+		});
+		return tasks;
+	}
+	
+	private static String progressName(File file, LogChunks.Chunk chunk) {
+		return chunk != null ? file.getName() + "#" + chunk.index : file.getName();
 	}
-	List<Rotator> rotators;
 	
 	private class Rotator implements Runnable {
 		private LogRotator parent;
 		private File file;
 		private String outputFolderPath;
-		public LogRotator worker;
-		public Rotator(LogRotator parent, File file, String outputFolderPath) {
+		private LogChunks chunks;
+		private LogChunks.Chunk chunk;
+		private long length;
+		private RotationJob job = null;
+		
+		public Rotator(LogRotator parent, File file, String outputFolderPath, LogChunks chunks, LogChunks.Chunk chunk,
+				long length) {
 			this.parent = parent;
 			this.file = file;
 			this.outputFolderPath = outputFolderPath;
+			this.chunks = chunks;
+			this.chunk = chunk;
+			this.length = length;
 		}
 		
-		public boolean running() {
-			return worker != null;
-		}
-		
-		public boolean done() {
-			return running() && worker.done;
-		}
-		
-		public String getFileName() {
-			return file.getName();
-		}
-		
-		public double getProgress() {
-			return running() ? worker.progress : 0.0;
+		public String getName() {
+			return progressName(file, chunk);
 		}
 		
 		@Override
 		public void run() {
-			worker = new LogRotator(parent);
+			LogRotator worker = new LogRotator(parent);
+			worker.job = job;
+			boolean success = false;
 			try {
-				worker.rotate(file, outputFolderPath);
-			} catch (Exception e) {
+				if (chunk != null)
+					worker.rotate(file, chunk);
+				else
+					worker.rotate(file, outputFolderPath);
+				success = true;
+			} catch (IOException e) {
 				throw new RuntimeException(e);
 			} finally {
-				parent.rotators.remove(this);
+				if (chunks != null)
+					chunks.chunkDone(chunk, success);
 			}
 		}
 	}
 	
 	private LogConditions conditions = null;
-	private double progress = 0.0;
 	private boolean done = true;
+	// the job of a submitted rotation, checked for cancellation
+	private RotationJob job = null;
 	
 	public void rotate(File file, String outputFolder) throws FileNotFoundException, IOException {
-		rotate(createReader(file), outputFolder);
+		if (canSplitBytes(file))
+			splitBytes(file, 0, file.length(), progressName(file, null), outputFolder);
+		else
+			rotate(createReader(file), outputFolder);
+	}
+	
+	private boolean canSplitBytes(File file) {
+		return zeroCopy && checkpoint == null && !storeOutput && analytics == null && !splitByError && errors == null && !compressOutput && percLimit <= 0 && !indexInputs
+				&& conditions.isFirstLineOnly() && "\n".equals(Properties.NL) && !Compression.isCompressed(file);
+	}
+	
+	private void splitBytes(File file, long start, long end, String name, String outputFolder) throws IOException {
+		if (!file.isFile()) {
+			throw new RuntimeException("Input doesn't exist");
+		}
+		RotateWriter.checkOutput(outputFolder, false);
+		fileName = file.getName();
+		fileProgress = metrics.fileStarted(name, end - start);
+		boolean success = false;
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		DateSplitter splitter = new DateSplitter(conditions, fileName, metrics, fileProgress);
+		splitter.setJob(job);
+		try {
+			splitter.split(raf.getChannel(), start, end, outputFolder);
+			logger.debug("Completed processing " + fileName);
+			success = true;
+		} finally {
+			try {
+				splitter.close();
+				raf.close();
+			} finally {
+				metrics.fileCompleted(fileProgress, success);
+				fileProgress = null;
+			}
+		}
+	}
+
+	/**
+	 * Rotates the entries of an uncompressed <code>inputFile</code> logged
+	 * from <code>from</code> (inclusive) to <code>to</code> (exclusive), in
+	 * milliseconds as parsed by {@link LogConditions#timestamp(CharSequence)}.
+	 * The window is found by binary search, see {@link LogWindow}, so only
+	 * its entries are read.
+	 */
+	public void rotate(String inputFile, String outputFolder, long from, long to) throws IOException {
+		File file = new File(inputFile);
+		if (!file.isFile()) {
+			throw new RuntimeException("Input doesn't exist: " + inputFile);
+		}
+		LogWindow window = new LogWindow(file);
+		long[] range = window.find(from, to);
+		logger.debug("Window of " + file.getName() + ": bytes " + range[0] + "-" + range[1]);
+		fileName = file.getName();
+		fileProgress = metrics.fileStarted(fileName, range[1] - range[0]);
+		rotate(new LineSource.Reader(new BufferedReader(new InputStreamReader(metrics.count(window.open(range[0],
+				range[1]), fileProgress)))), outputFolder);
+	}
+
+	void rotate(File file, LogChunks.Chunk chunk) throws FileNotFoundException, IOException {
+		if (canSplitBytes(file)) {
+			splitBytes(file, chunk.start, chunk.end, progressName(file, chunk), chunk.partFolder);
+			return;
+		}
+		fileName = file.getName();
+		fileProgress = metrics.fileStarted(progressName(file, chunk), chunk.length());
+		rotate(new LineSource.Reader(new BufferedReader(new InputStreamReader(metrics.count(chunk.openStream(),
+				fileProgress)))), chunk.partFolder);
 	}
 
 	public void rotate(BufferedReader r, String outputFolder) throws FileNotFoundException, IOException {
+		rotate(new LineSource.Reader(r), outputFolder);
+	}
+
+	void rotate(LineSource r, String outputFolder) throws FileNotFoundException, IOException {
 		RotateWriter.checkOutput(outputFolder, false);
 		
-		progress = 0.0;
 		done = false;
+		boolean success = false;
 		
 		String line = null;
-		RotateWriter w = new RotateWriter(conditions, splitByError ? null : fileName);
+		RotateWriter w = createRotateWriter(fileName);
+		RotatePipeline pipeline = null;
 		try {
-			while (!done) {
-				line = r.readLine();
-				done = line == null;
-				if (done || w.isLogStart(line)) {
-					if (w.notEmpty()) {
-						if (!w.isDuplicate()) {
-							if (w.filterLines())
-								w.switchFile(outputFolder);
-						} else if (ignoreDuplicates)
-							w.clearLines();
-						
-						w.flushLines();
-						w.nextStep();
+			openStore(outputFolder);
+			if (cursor != null)
+				cursor.attach(w);
+			if (pipelineWorkers > 0 && cursor == null) {
+				pipeline = new RotatePipeline(conditions, splitByError, compressOutput, writers, pipelineWorkers);
+				w.setOutput(pipeline.getOutput(), writers);
+				rotate(pipeline, r, w, outputFolder);
+			} else {
+				while (!done) {
+					line = r.readLine();
+					done = line == null;
+					if (done || w.isLogStart(line)) {
+						if (job != null && job.isCancelled())
+							throw new CancellationException("Rotation of " + fileName + " cancelled");
+						completeEntry(w, outputFolder);
+						if (cursor != null && !done)
+							cursor.entryStart();
 					}
-				}
-				
-				if (!done) {
-					w.addLine(line);
-
-					progress += line.getBytes().length * fileSizePerc;
+					
+					if (!done) {
+						w.addLine(line);
 
-					if (percLimit > 0 && progress > percLimit) {
-						logger.warn("Limit reached. There's still log to rotate.");
-						break;
+						if (percLimit > 0 && fileProgress != null && fileProgress.getProgress() > percLimit) {
+							logger.warn("Limit reached. There's still log to rotate.");
+							break;
+						}
 					}
 				}
 			}
 			logger.debug("Completed processing " + fileName);
+			success = true;
 		} finally {
-			r.close();
+			// the pipeline reader closes its input
+			if (pipeline == null)
+				r.close();
+			else if (!success)
+				pipeline.stop();
 			try {
-				w.flushLines();
+				finish(w, pipeline, outputFolder, success);
 			} finally {
-				w.closeWriter();
+				if (cursor != null) {
+					cursor.close(success);
+					cursor = null;
+				}
 			}
 		}
 	}
 	
-	private String fileName = "";
-	private double fileSizePerc = 0.0;
+	/**
+	 * Writes out the last entry and the duplicate summaries and closes the
+	 * writer once a file is rotated.
+	 */
+	private void finish(RotateWriter w, RotatePipeline pipeline, String outputFolder, boolean success) throws IOException {
+		try {
+			try {
+				w.flushLines();
+				if (ignoreDuplicates && conditions.getDuplicateIndex() != null)
+					writeRepeats(w, conditions.getDuplicateIndex().finish(), outputFolder);
+			} finally {
+				// the output thread ends either way, before the pooled writers are closed
+				if (pipeline != null)
+					pipeline.getOutput().finish();
+			}
+		} finally {
+			w.close();
+			try {
+				if (store != null)
+					store.close();
+				if (seen != null)
+					seen.save();
+			} finally {
+				store = null;
+				if (fileProgress != null) {
+					metrics.fileCompleted(fileProgress, success);
+					fileProgress = null;
+				}
+			}
+		}
+	}
 	
-	private BufferedReader createReader(File file) throws FileNotFoundException {
+	/**
+	 * Rotates <code>file</code> for all <code>jobs</code> in one pass, see
+	 * {@link RotationJobs}. Lines are read and entry starts detected once,
+	 * by the first job's writer, which hands its parse to the others. Stops
+	 * at the next entry once <code>job</code>, if any, is cancelled.
+	 */
+	static void rotate(File file, List<LogRotator> jobs, List<String> outputFolders, RotationJob job)
+			throws IOException {
 		if (!file.exists() || !file.isFile()) {
 			throw new RuntimeException("Input doesn't exist");
 		}
+		int n = jobs.size();
+		LogRotator[] workers = new LogRotator[n];
+		RotateWriter[] writers = new RotateWriter[n];
+		long length = Compression.uncompressedLength(file);
+		InputStream in = Compression.open(file);
+		for (int i = 0; i < n; i++) {
+			LogRotator worker = workers[i] = new LogRotator(jobs.get(i));
+			worker.fileName = Compression.baseName(file);
+			worker.fileProgress = worker.metrics.fileStarted(progressName(file, null), length);
+			in = worker.metrics.count(in, worker.fileProgress);
+			writers[i] = worker.createRotateWriter(worker.fileName);
+		}
+		for (int i = 0; i < n; i++)
+			workers[i].openStore(outputFolders.get(i));
+		BufferedReader r = new BufferedReader(new InputStreamReader(in));
 		
-		fileName = file.getName();
-		fileSizePerc = 100.0/file.length();
-		
-		BufferedReader r = new BufferedReader(new FileReader(file));
-		return r;
+		boolean success = false;
+		try {
+			boolean done = false;
+			while (!done) {
+				String line = r.readLine();
+				done = line == null;
+				boolean start = !done && writers[0].isLogStart(line);
+				if (start && job != null && job.isCancelled())
+					throw new CancellationException("Rotation of " + file.getName() + " cancelled");
+				for (int i = 0; i < n; i++) {
+					if (start && i > 0)
+						writers[i].logStart(writers[0]);
+					if (done || start)
+						workers[i].completeEntry(writers[i], outputFolders.get(i));
+					if (!done)
+						writers[i].addLine(line);
+				}
+			}
+			logger.debug("Completed processing " + file.getName() + " for " + n + " jobs");
+			success = true;
+		} finally {
+			r.close();
+			Exception failure = null;
+			for (int i = 0; i < n; i++) {
+				try {
+					workers[i].finish(writers[i], null, outputFolders.get(i), success);
+				} catch (Exception e) {
+					if (failure == null)
+						failure = e;
+				}
+			}
+			if (failure instanceof IOException)
+				throw (IOException) failure;
+			if (failure != null)
+				throw (RuntimeException) failure;
+		}
+	}
+	
+	private void rotate(RotatePipeline pipeline, LineSource r, RotateWriter w, String outputFolder) throws IOException {
+		pipeline.start(r, outputFolder, fileProgress, percLimit);
+		RotatePipeline.Batch b;
+		while ((b = pipeline.next()) != null) {
+			if (job != null && job.isCancelled())
+				throw new CancellationException("Rotation of " + fileName + " cancelled");
+			for (int i = 0; i < b.size; i++) {
+				w.addLine(b.entries[i], false);
+				w.setPrepared(b.accepted[i], b.skipped[i], b.filtered[i], b.targets[i]);
+				completeEntry(w, outputFolder);
+			}
+		}
+		done = true;
 	}
 	
-	private void startProgressTask() {
-		new ProgressTask(15000).start();
+	RotateWriter createRotateWriter(String fileName) {
+		RotateWriter w = new RotateWriter(conditions, splitByError ? null : fileName, writers);
+		w.setCompress(compressOutput);
+		w.setMetrics(metrics);
+		return w;
 	}
 	
-	private class ProgressTask extends TimerTask {
+	/**
+	 * Filters the buffered entry, writes it out and starts the next one.
+	 */
+	void completeEntry(RotateWriter w, String outputFolder) throws IOException {
+		if (!w.notEmpty()) return;
+		metrics.entryRead();
+		long start = System.nanoTime();
+		boolean duplicate = w.isDuplicate();
+		long end = System.nanoTime();
+		metrics.matchTime(end - start);
+		DuplicateIndex duplicates = conditions.getDuplicateIndex();
 		
-		public ProgressTask(long delay) {
-			this.delay = delay;
-		}
+		if (!duplicate) {
+			start = end;
+			boolean accepted = w.filterLines();
+			end = System.nanoTime();
+			metrics.filterTime(end - start);
+			if (accepted && duplicates != null)
+				duplicates.record();
+			if (accepted && analytics != null)
+				count(w);
+			if (accepted && errors != null && splitByError) {
+				String lines = w.getLines();
+				errors.add(w.errorSignature(lines), lines);
+				w.clearLines();
+			} else if (accepted && store != null) {
+				store.add(w.getLogEntry());
+				w.clearLines();
+				metrics.entryWritten();
+			} else if (accepted)
+				w.switchFile(outputFolder);
+			else if (w.wasSkipped())
+				metrics.entrySkipped();
+			else
+				metrics.entryFiltered();
+		} else if (ignoreDuplicates) {
+			w.clearLines();
+			metrics.entryDeduplicated();
+		} else if (analytics != null)
+			count(w);
 		
-		private Timer t;
-		private long delay;
-		private Date started = new Date();
+		if (w.notEmpty())
+			metrics.entryWritten();
+		w.flushLines();
+		metrics.writeTime(System.nanoTime() - end);
+		w.nextStep();
 		
-		public void start() {
-			t = new Timer();
-			Calendar c = new GregorianCalendar();
-			c.add(Calendar.SECOND, 4);
-			t.schedule(this, delay, delay);
+		if (ignoreDuplicates && duplicates != null && duplicates.getFinishedCount() >= REPEATS_BATCH)
+			writeRepeats(w, duplicates.drainFinished(), outputFolder);
+	}
+	
+	private void count(RotateWriter w) {
+		LogEntry e = w.getLogEntry();
+		int severity = EntryAnalytics.severity(e.getSeverity());
+		analytics.add(e.getTimestamp(), severity, EntryAnalytics.isError(severity) ? EntryAnalytics.signature(e) : null);
+	}
+	
+	private void openStore(String outputFolder) throws IOException {
+		if (storeOutput)
+			store = new EntryStore.Writer(EntryStore.storeFile(outputFolder, fileName));
+	}
+	
+	private static final String DUPLICATES_NAME_PATTERN = "%s.duplicates.log";
+	private static final int REPEATS_BATCH = 64;
+	
+	private void writeRepeats(RotateWriter w, List<DuplicateIndex.Repeats> repeats, String outputFolder) throws IOException {
+		if (repeats.isEmpty()) return;
+		String name = fileName.contains(".") ? fileName.substring(0, fileName.lastIndexOf(".")) : fileName;
+		String path = outputFolder + "/" + String.format(DUPLICATES_NAME_PATTERN, name);
+		w.written(path);
+		Writer out = RotateWriter.createWriter(path, true);
+		try {
+			for (DuplicateIndex.Repeats r : repeats) {
+				out.write(r.summary());
+				out.write(Properties.NL);
+			}
+		} finally {
+			out.close();
+		}
+	}
+	
+	/**
+	 * Creates a follower which keeps rotating <code>inputFile</code> as it
+	 * grows, saving its position to <code>checkpointFile</code>. Run it on a
+	 * thread of your choice and stop it with {@link LogFollower#stop()}.
+	 */
+	public LogFollower follow(String inputFile, String outputFolder, String checkpointFile) {
+		if (compressOutput || errors != null || analytics != null || seen != null || storeOutput)
+			throw new RuntimeException("Checkpoints don't support compressed, aggregated or stored outputs");
+		return new LogFollower(this, new File(inputFile), outputFolder, new File(checkpointFile));
+	}
+	
+	/**
+	 * Creates a watcher which rotates the files rolled over into
+	 * <code>inputFolder</code> as they appear, remembering those rotated in
+	 * <code>stateFile</code>. Run it on a thread of your choice and stop it
+	 * with {@link LogWatcher#stop()}.
+	 */
+	public LogWatcher watch(String inputFolder, String outputFolder, String stateFile) {
+		return new LogWatcher(this, new File(inputFolder), outputFolder, new File(stateFile));
+	}
+	
+	private String fileName = "";
+	private RotationMetrics.FileProgress fileProgress = null;
+	
+	private LineSource createReader(File file) throws IOException {
+		if (!file.exists() || !file.isFile()) {
+			throw new RuntimeException("Input doesn't exist");
 		}
 		
-		@Override
-		public void run() {
-			boolean running = false;
-			int queued = 0;
-			for (Rotator r : rotators)
-				if (!r.done()) {
-					if (r.running()) {
-						double progress = r.getProgress();
-						long timePassed = new Date().getTime() - started.getTime();
-						long eta = Math.round(timePassed * (100.0 / progress - 1.0)) / 1000;
-						logger.debug(String.format("%s is processed %.2f%%, ETA %d:%02d", r.getFileName(), progress, eta / 60, eta % 60));
-					} else {
-						queued++;
-					}
-					running = true;
+		fileName = Compression.baseName(file);
+		fileProgress = metrics.fileStarted(progressName(file, null), Compression.uncompressedLength(file));
+		
+		if (checkpoint != null)
+			return createResumedReader(file);
+		InputStream in = metrics.count(Compression.open(file), fileProgress);
+		if (indexInputs && !Compression.isCompressed(file))
+			return new OffsetIndex.LineReader(in, new OffsetIndex.Builder(file));
+		return new LineSource.Reader(new BufferedReader(new InputStreamReader(in)));
+	}
+	
+	/**
+	 * Reads <code>file</code> from its checkpoint offset, tracking entry
+	 * offsets for the next commits.
+	 */
+	private LineSource createResumedReader(File file) throws IOException {
+		cursor = checkpoint.cursor(file);
+		long offset = cursor.getOffset();
+		InputStream in = Compression.open(file);
+		boolean positioned = false;
+		try {
+			for (long skipped = 0; skipped < offset; ) {
+				long n = in.skip(offset - skipped);
+				if (n <= 0) {
+					if (in.read() < 0)
+						throw new RuntimeException(file.getName() + " is shorter than its checkpoint offset " + offset);
+					n = 1;
 				}
-			if (queued > 0)
-				logger.debug(queued + " files in queue");
-			if (!running) {
-				t.cancel();
-				rotators = new LinkedList<Rotator>();
+				skipped += n;
 			}
+			positioned = true;
+		} finally {
+			if (!positioned)
+				in.close();
+		}
+		if (offset > 0) {
+			logger.debug("Resuming " + file.getName() + " at " + offset);
+			metrics.bytesRead(fileProgress, offset);
 		}
+		in = metrics.count(in, fileProgress);
+		OffsetIndex.Builder index = indexInputs && offset == 0 && !Compression.isCompressed(file)
+				? new OffsetIndex.Builder(file) : null;
+		OffsetIndex.LineReader r = new OffsetIndex.LineReader(in, index, offset);
+		cursor.setReader(r);
+		return r;
+	}
+	
+	/**
+	 * Logs progress at debug level every 15 s until all files are done.
+	 */
+	private void startReporting() {
+		metrics.addListener(new ProgressLogger());
+		metrics.startReporting(15000);
 	}
 }
@@ -0,0 +1,242 @@
+package org.romanprotsiuk.logrotator;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Detects log entry starts with a cheap shape check in front of the full
+ * log pattern. The shape is compiled from the leading mandatory part of the
+ * pattern (e.g. the digit-date prefix of <code>LOG_DATE_PART</code>), so
+ * stack frames and continuation lines are rejected from their first
+ * characters. Lines passing the shape check are confirmed with the full
+ * pattern, so the answers are the same as with the pattern alone.
+ */
+class LogStartDetector {
+
+	private static final int DIGIT = 0;
+	private static final int SPACE = 1;
+	private static final int WORD = 2;
+	private static final int ANY = 3;
+	private static final int LITERAL = 4;
+
+	private static final int UNBOUNDED = Integer.MAX_VALUE;
+
+	private static final int UNSUPPORTED_FLAGS = Pattern.CASE_INSENSITIVE | Pattern.COMMENTS | Pattern.LITERAL
+			| Pattern.UNICODE_CHARACTER_CLASS;
+
+	public LogStartDetector(Pattern pattern) {
+		this.pattern = pattern;
+		this.steps = compile(pattern);
+	}
+
+	private Pattern pattern;
+	private Step[] steps;
+
+	private static class Step {
+		public Step(int kind, char literal, int min, int max) {
+			this.kind = kind;
+			this.literal = literal;
+			this.min = min;
+			this.max = max;
+		}
+		public int kind;
+		public char literal;
+		public int min;
+		public int max;
+
+		public boolean accepts(char c) {
+			switch (kind) {
+			case DIGIT:
+				return c >= '0' && c <= '9';
+			case SPACE:
+				return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+			case WORD:
+				return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '_';
+			case ANY:
+				return true;
+			default:
+				return c == literal;
+			}
+		}
+	}
+
+	public boolean isLogStart(CharSequence line) {
+		return isLogStart(line, null);
+	}
+
+	/**
+	 * Same as {@link #isLogStart(CharSequence)}, confirming candidates with
+	 * the caller's matcher of the pattern instead of a new one.
+	 */
+	public boolean isLogStart(CharSequence line, Matcher matcher) {
+		if (line == null) return false;
+		if (steps.length != 0 && !matchShape(line, 0, 0) && !hasLineTerminator(line))
+			return false;
+		return matcher != null ? matcher.reset(line).find() : pattern.matcher(line).find();
+	}
+
+	/**
+	 * The shape check alone: false if the line surely doesn't start an
+	 * entry, so callers can skip decoding it.
+	 */
+	public boolean mayStart(CharSequence line) {
+		return steps.length == 0 || matchShape(line, 0, 0) || hasLineTerminator(line);
+	}
+
+	/**
+	 * Number of leading pattern elements the shape check verifies, zero when
+	 * the pattern is too complex and every line goes to the full pattern.
+	 */
+	public int getShapeLength() {
+		return steps.length;
+	}
+
+	private boolean matchShape(CharSequence line, int idx, int pos) {
+		if (idx == steps.length) return true;
+		Step s = steps[idx];
+		int len = line.length();
+		int n = 0;
+		while (n < s.max && pos + n < len && s.accepts(line.charAt(pos + n)))
+			n++;
+		for (int k = n; k >= s.min; k--)
+			if (matchShape(line, idx + 1, pos + k))
+				return true;
+		return false;
+	}
+
+	// '^' of a MULTILINE pattern also matches after an inner line terminator
+	private static boolean hasLineTerminator(CharSequence line) {
+		if (line instanceof String) {
+			// String.indexOf is intrinsified, which beats a char loop on long lines
+			String s = (String) line;
+			return s.indexOf('\n') != -1 || s.indexOf('\r') != -1 || s.indexOf('\u0085') != -1
+					|| s.indexOf('\u2028') != -1 || s.indexOf('\u2029') != -1;
+		}
+		for (int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if (c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029')
+				return true;
+		}
+		return false;
+	}
+
+	private static Step[] compile(Pattern pattern) {
+		String re = pattern.pattern();
+		if ((pattern.flags() & UNSUPPORTED_FLAGS) != 0 || !re.startsWith("^") || hasTopLevelAlternation(re))
+			return new Step[0];
+
+		List<Step> steps = new ArrayList<Step>();
+		LinkedList<Integer> groups = new LinkedList<Integer>();
+		int i = 1;
+		boolean stop = false;
+		while (!stop && i < re.length()) {
+			char c = re.charAt(i);
+			if (c == '(') {
+				if (re.startsWith("(?:", i)) {
+					i += 3;
+				} else if (re.startsWith("(?", i)) {
+					break;
+				} else {
+					i++;
+				}
+				groups.push(steps.size());
+				continue;
+			}
+			if (c == ')') {
+				int groupStart = groups.pop();
+				i++;
+				if (i < re.length() && "?*+{".indexOf(re.charAt(i)) != -1) {
+					truncate(steps, groupStart);
+					stop = true;
+				}
+				continue;
+			}
+
+			int kind;
+			char literal = 0;
+			if (c == '\\' && i + 1 < re.length()) {
+				char e = re.charAt(i + 1);
+				if (e == 'd')
+					kind = DIGIT;
+				else if (e == 's')
+					kind = SPACE;
+				else if (e == 'w')
+					kind = WORD;
+				else if (!Character.isLetterOrDigit(e)) {
+					kind = LITERAL;
+					literal = e;
+				} else
+					break;
+				i += 2;
+			} else if (c == '.') {
+				kind = ANY;
+				i++;
+			} else if ("[]{}?*+|$^\\".indexOf(c) != -1) {
+				break;
+			} else {
+				kind = LITERAL;
+				literal = c;
+				i++;
+			}
+
+			int min = 1;
+			int max = 1;
+			if (i < re.length()) {
+				char q = re.charAt(i);
+				if (q == '?' || q == '*' || q == '+') {
+					min = q == '+' ? 1 : 0;
+					max = q == '?' ? 1 : UNBOUNDED;
+					i++;
+				} else if (q == '{') {
+					int close = re.indexOf('}', i);
+					if (close == -1) break;
+					String[] bounds = re.substring(i + 1, close).split(",", -1);
+					try {
+						min = Integer.parseInt(bounds[0]);
+						max = bounds.length == 1 ? min : bounds[1].length() == 0 ? UNBOUNDED : Integer.parseInt(bounds[1]);
+					} catch (NumberFormatException ex) {
+						break;
+					}
+					i = close + 1;
+				}
+				// lazy and possessive quantifiers aren't worth supporting
+				if (i < re.length() && (re.charAt(i) == '?' || re.charAt(i) == '+') && (min != 1 || max != 1))
+					break;
+			}
+			steps.add(new Step(kind, literal, min, max));
+		}
+		// an unfinished group may still turn out optional or alternated
+		if (!groups.isEmpty())
+			truncate(steps, groups.getLast());
+		return steps.toArray(new Step[steps.size()]);
+	}
+
+	private static void truncate(List<Step> steps, int size) {
+		while (steps.size() > size)
+			steps.remove(steps.size() - 1);
+	}
+
+	private static boolean hasTopLevelAlternation(String re) {
+		int depth = 0;
+		boolean inClass = false;
+		for (int i = 0; i < re.length(); i++) {
+			char c = re.charAt(i);
+			if (c == '\\')
+				i++;
+			else if (inClass)
+				inClass = c != ']';
+			else if (c == '[')
+				inClass = true;
+			else if (c == '(')
+				depth++;
+			else if (c == ')')
+				depth--;
+			else if (c == '|' && depth == 0)
+				return true;
+		}
+		return false;
+	}
+}
@@ -0,0 +1,315 @@
+package org.romanprotsiuk.logrotator;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Keeps rotating the files rolled over into a folder, e.g. by log4j's
+ * <code>DailyRollingFileAppender</code>, as they appear. Files created or
+ * changed in the folder, and those already there on start, are queued on a
+ * rotation executor once their length and modification time stay the same
+ * for <code>stableTime</code> ms (the appender may still be writing to
+ * them). Each file is rotated whole on one thread.
+ * <p>
+ * Only names matching <code>filePattern</code> are taken, by default those
+ * with a date suffix, so the live log isn't rotated while it grows. Files
+ * rotated are saved to a state file with their length and file key (device
+ * and inode where the file system has them); a restarted watcher skips
+ * them and rotates the rest, including those that failed.
+ * <p>
+ * Every file is rotated once, as its outputs are appended to: one found
+ * again under another name, or a compressed copy (<code>.gz</code>) of one
+ * rotated or being rotated, is skipped, and so is one changed after it was
+ * rotated, with a warning.
+ */
+public class LogWatcher implements Runnable {
+
+	public static final long DEFAULT_POLL_INTERVAL = 1000;
+	public static final long DEFAULT_STABLE_TIME = 3000;
+	/**
+	 * Names with a <code>DailyRollingFileAppender</code> date suffix, such
+	 * as <code>webapp.log.2012-03-01</code>.
+	 */
+	public static final Pattern DATED_FILES = Pattern.compile(".+\\.\\d{4}-\\d{2}.*");
+
+	LogWatcher(LogRotator parent, File folder, String outputFolder, File state) {
+		this.parent = parent;
+		this.folder = folder;
+		this.outputFolder = outputFolder;
+		this.state = state;
+	}
+
+	private LogRotator parent;
+	private File folder;
+	private String outputFolder;
+	private File state;
+	private long pollInterval = DEFAULT_POLL_INTERVAL;
+	private long stableTime = DEFAULT_STABLE_TIME;
+	private Pattern filePattern = DATED_FILES;
+	private volatile boolean stopped = false;
+
+	// rotated files by name, with their identity
+	private java.util.Properties done = new java.util.Properties();
+	// identities of rotated files with a file key, to know them under another name
+	private Set<String> doneIds = new HashSet<String>();
+	private Map<String, Candidate> candidates = new HashMap<String, Candidate>();
+	private Set<String> queued = new HashSet<String>();
+
+	private static class Candidate {
+		public long length = -1;
+		public long modified = -1;
+		public long since;
+	}
+
+	public void setPollInterval(long pollInterval) {
+		this.pollInterval = pollInterval;
+	}
+
+	public void setStableTime(long stableTime) {
+		this.stableTime = stableTime;
+	}
+
+	/**
+	 * Names of the files to rotate, all files if null.
+	 */
+	public void setFilePattern(Pattern filePattern) {
+		this.filePattern = filePattern;
+	}
+
+	/**
+	 * Stops watching; files already queued are rotated before
+	 * {@link #run()} returns. Interrupting the watching thread stops it
+	 * without waiting for them.
+	 */
+	public void stop() {
+		stopped = true;
+	}
+
+	@Override
+	public void run() {
+		try {
+			watch();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private void watch() throws IOException {
+		if (!folder.isDirectory())
+			throw new RuntimeException("Input folder doesn't exist: " + folder);
+		RotateWriter.checkOutput(outputFolder, false);
+		restore();
+		ExecutorService executor = LogRotator.getExecutor();
+		WatchService watcher = FileSystems.getDefault().newWatchService();
+		try {
+			Path dir = folder.toPath();
+			dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+			// registered first, so nothing created meanwhile is missed
+			scan();
+			LogRotator.logger.info("Watching " + folder);
+			while (!stopped) {
+				WatchKey key;
+				try {
+					key = watcher.poll(pollInterval, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+				if (key != null) {
+					for (WatchEvent<?> event : key.pollEvents()) {
+						if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+							scan();
+						else
+							candidate(dir.resolve((Path) event.context()).toFile(), System.currentTimeMillis());
+					}
+					if (!key.reset())
+						throw new IOException("Input folder is gone: " + folder);
+				}
+				queueStable(executor);
+			}
+		} finally {
+			watcher.close();
+			executor.shutdown();
+			try {
+				executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			LogRotator.logger.debug("Stopped watching " + folder);
+		}
+	}
+
+	private void scan() {
+		File[] files = folder.listFiles(RotateWriter.regularFiles);
+		if (files == null) return;
+		for (File f : files)
+			candidate(f, f.lastModified());
+	}
+
+	private void candidate(File file, long since) {
+		String name = file.getName();
+		if (!file.isFile() || !RotateWriter.regularFiles.accept(file) || isState(file)
+				|| (filePattern != null && !filePattern.matcher(name).matches()))
+			return;
+		if (!candidates.containsKey(name)) {
+			Candidate c = new Candidate();
+			c.since = since;
+			candidates.put(name, c);
+		}
+	}
+
+	private boolean isState(File file) {
+		String path = file.getAbsolutePath();
+		String statePath = state.getAbsolutePath();
+		return path.equals(statePath) || path.equals(statePath + ".tmp");
+	}
+
+	private void queueStable(ExecutorService executor) throws IOException {
+		long now = System.currentTimeMillis();
+		for (Iterator<Map.Entry<String, Candidate>> i = candidates.entrySet().iterator(); i.hasNext();) {
+			Map.Entry<String, Candidate> e = i.next();
+			final File file = new File(folder, e.getKey());
+			Candidate c = e.getValue();
+			if (!file.isFile()) {
+				i.remove();
+				continue;
+			}
+			long length = file.length();
+			long modified = file.lastModified();
+			if (length != c.length || modified != c.modified) {
+				// the first look at a file found by scanning keeps its modification time
+				if (c.length >= 0)
+					c.since = now;
+				c.length = length;
+				c.modified = modified;
+				continue;
+			}
+			if (now - c.since < stableTime) continue;
+			i.remove();
+			final String id;
+			try {
+				id = identity(file, length);
+			} catch (IOException x) {
+				// gone meanwhile
+				continue;
+			}
+			if (isDone(file, id) || !queue(file.getName())) continue;
+
+			LogRotator.logger.info("Queueing " + file.getName());
+			parent.getMetrics().fileQueued(file.getName(), Compression.uncompressedLength(file));
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					boolean success = false;
+					try {
+						new LogRotator(parent).rotate(file, outputFolder);
+						success = true;
+					} catch (Exception e) {
+						LogRotator.logger.error("Rotation of " + file.getName() + " failed", e);
+					} finally {
+						rotated(file.getName(), success ? id : null);
+					}
+				}
+			});
+		}
+	}
+
+	// whether the file was rotated, under this name or another, or is a compressed copy of one
+	private synchronized boolean isDone(File file, String id) {
+		String name = file.getName();
+		String rotated = done.getProperty(name);
+		if (rotated != null) {
+			if (!rotated.equals(id))
+				LogRotator.logger.warn(name + " changed after it was rotated, not rotating it again");
+			return true;
+		}
+		if (doneIds.contains(id)) {
+			LogRotator.logger.info("Skipping " + name + ", already rotated under another name");
+			return true;
+		}
+		String base = Compression.baseName(file);
+		// the base may be queued later in the same poll, or be still growing
+		if (Compression.isCompressed(name) && (done.containsKey(base) || queued.contains(base)
+				|| candidates.containsKey(base) || new File(folder, base).isFile())) {
+			LogRotator.logger.info("Skipping " + name + ", a compressed copy of " + base);
+			return true;
+		}
+		return false;
+	}
+
+	// false if the file is still being rotated
+	private synchronized boolean queue(String name) {
+		return queued.add(name);
+	}
+
+	private synchronized void rotated(String name, String id) {
+		queued.remove(name);
+		if (id == null) return;
+		done.setProperty(name, id);
+		if (hasFileKey(id))
+			doneIds.add(id);
+		try {
+			save();
+		} catch (IOException e) {
+			LogRotator.logger.error("Saving " + state + " failed", e);
+		}
+	}
+
+	// the same under another name as long as the content is
+	private static String identity(File file, long length) throws IOException {
+		Object key = Files.readAttributes(file.toPath(), BasicFileAttributes.class).fileKey();
+		return length + "," + (key != null ? key : "");
+	}
+
+	private static boolean hasFileKey(String id) {
+		return !id.endsWith(",");
+	}
+
+	private void restore() throws IOException {
+		if (!state.exists()) return;
+		InputStream is = new FileInputStream(state);
+		try {
+			done.load(is);
+		} finally {
+			is.close();
+		}
+		for (String name : done.stringPropertyNames()) {
+			String id = done.getProperty(name);
+			if (hasFileKey(id))
+				doneIds.add(id);
+		}
+		LogRotator.logger.debug(done.size() + " files of " + folder + " already rotated");
+	}
+
+	private void save() throws IOException {
+		File tmp = new File(state.getPath() + ".tmp");
+		OutputStream os = new FileOutputStream(tmp);
+		try {
+			done.store(os, "LogWatcher state of " + folder);
+		} finally {
+			os.close();
+		}
+		Files.move(tmp.toPath(), state.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+}
@@ -0,0 +1,117 @@
+package org.romanprotsiuk.logrotator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+
+/**
+ * Finds the entries of a time window in an uncompressed log by binary
+ * search over byte offsets: every probe seeks to an offset, moves on to the
+ * next entry start and parses its timestamp. Finding a window costs about
+ * log2(file size) probes of one line each, so reading it depends on the
+ * window size only.
+ * <p>
+ * The log has to be in time order, as written by one logger. Entries
+ * without a parseable timestamp belong to the window of the entry before
+ * them.
+ */
+class LogWindow {
+
+	public LogWindow(File file) {
+		if (Compression.isCompressed(file))
+			throw new RuntimeException("Can't seek in compressed input: " + file.getName());
+		this.file = file;
+	}
+
+	private File file;
+
+	/**
+	 * Start and end offsets of the entries logged from <code>from</code>
+	 * (inclusive) to <code>to</code> (exclusive).
+	 */
+	public long[] find(long from, long to) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			long size = channel.size();
+			long start = find(channel, from, 0, size);
+			long end = to > from ? find(channel, to, start, size) : start;
+			return new long[] { start, end };
+		} finally {
+			raf.close();
+		}
+	}
+
+	public InputStream open(long start, long end) throws IOException {
+		return new LogChunks.MappedInputStream(new RandomAccessFile(file, "r").getChannel(), start, end);
+	}
+
+	/**
+	 * Offset of the first entry at or after <code>lo</code> logged at or
+	 * after <code>time</code>, <code>size</code> if there's none.
+	 */
+	private static long find(FileChannel channel, long time, long lo, long size) throws IOException {
+		long hi = size;
+		long[] probe = null;
+		while (lo < hi) {
+			long mid = (lo + hi) >>> 1;
+			long[] p = probe(channel, mid, size);
+			if (p[1] >= time) {
+				hi = mid;
+				probe = p;
+			} else
+				lo = mid + 1;
+		}
+		return probe != null ? probe[0] : size;
+	}
+
+	/**
+	 * Offset and timestamp of the first entry with a timestamp starting at
+	 * or after <code>pos</code>, or <code>size</code> and
+	 * {@link Long#MAX_VALUE} if there's none.
+	 */
+	private static long[] probe(FileChannel channel, long pos, long size) throws IOException {
+		LogChunks.MappedInputStream in = new LogChunks.MappedInputStream(channel, pos - 1, size);
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		int c;
+		if (pos > 0)
+			while ((c = in.read()) >= 0 && c != '\n');
+
+		long lineStart = in.position();
+		while (lineStart < size) {
+			line.reset();
+			while ((c = in.read()) >= 0 && c != '\n')
+				line.write(c);
+			String s = line.toString();
+			if (s.endsWith("\r"))
+				s = s.substring(0, s.length() - 1);
+			if (Properties.LOG_START.isLogStart(s)) {
+				long t = LogConditions.timestamp(s);
+				if (t >= 0)
+					return new long[] { lineStart, t };
+			}
+			lineStart = in.position();
+		}
+		return new long[] { size, Long.MAX_VALUE };
+	}
+
+	/**
+	 * Parses <code>yyyy-MM-dd H:mm[:ss[,SSS]]</code> into milliseconds the
+	 * way log timestamps are, see {@link LogConditions#timestamp(CharSequence)}.
+	 */
+	public static long parseTime(String time) {
+		String s = time.trim();
+		int colons = s.length() - s.replace(":", "").length();
+		if (colons == 1)
+			s += ":00";
+		if (s.indexOf(',') < 0)
+			s += ",000";
+		long result = LogConditions.timestamp(s);
+		if (result < 0)
+			throw new RuntimeException("Invalid time: " + time);
+		return result;
+	}
+}
@@ -0,0 +1,490 @@
+package org.romanprotsiuk.logrotator;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sparse index of a log, kept next to it in a <code>.idx</code> file and
+ * built while the log is rotated. The log is cut into blocks of about
+ * {@link #BLOCK_SIZE} bytes starting at timestamped entries; for every
+ * block the index keeps its offset, the earliest and latest entry times and
+ * a bitmap of the severities logged in it. Queries read only the blocks
+ * which can hold matching entries, whether the log is in time order or not.
+ * <p>
+ * The format is big-endian, with fixed size records so the file is mapped
+ * instead of read:
+ * <pre>
+ * header  int magic "LRIX", int version, int block size, int block count,
+ *         long indexed length, long entry count, long input modification
+ *         time, long hash of the input's file key, long hash of its first
+ *         {@link #HEAD_SIZE} bytes
+ * block   long offset, long min time, long max time, int entries,
+ *         int severities
+ * </pre>
+ * Times are as parsed by {@link LogConditions#timestamp(CharSequence)}, an
+ * entry without a timestamp taking the time of the entry before it. Bytes
+ * appended to the log after it was indexed are always read. An index is
+ * stale, and rebuilt by the next rotation, when the log is shorter than
+ * indexed, is another file, starts differently, or was modified without
+ * growing.
+ */
+class OffsetIndex {
+
+	public static final int MAGIC = 0x4C524958;
+	public static final int VERSION = 2;
+	public static final int BLOCK_SIZE = 64 * 1024;
+	public static final String SUFFIX = ".idx";
+
+	static final int HEADER_SIZE = 56;
+	static final int HEAD_SIZE = 4096;
+	static final int RECORD_SIZE = 32;
+
+	static final String[] SEVERITIES = { "TRACE", "DEBUG", "INFO", "WARN", "ERROR", "FATAL" };
+	static final int OTHER = 1 << SEVERITIES.length;
+	// severity words are looked for at the start of the line only
+	private static final int SEVERITY_SCAN_LENGTH = 80;
+
+	public static File indexFile(File input) {
+		return new File(input.getPath() + SUFFIX);
+	}
+
+	static boolean isIndexFile(File file) {
+		return file.getName().endsWith(SUFFIX) || file.getName().endsWith(SUFFIX + ".tmp");
+	}
+
+	/**
+	 * Bitmap of the given severity names, all severities if there are none.
+	 */
+	public static int severities(String... names) {
+		if (names == null || names.length == 0) return -1;
+		int result = 0;
+		for (String name : names) {
+			int i = indexOf(name.trim().toUpperCase());
+			result |= i >= 0 ? 1 << i : OTHER;
+		}
+		return result;
+	}
+
+	static int indexOf(String severity) {
+		for (int i = 0; i < SEVERITIES.length; i++)
+			if (SEVERITIES[i].equals(severity))
+				return i;
+		return -1;
+	}
+
+	/**
+	 * Severity bit of an entry, from the first severity word of its line.
+	 */
+	static int severity(CharSequence line) {
+		int end = Math.min(line.length(), SEVERITY_SCAN_LENGTH);
+		int i = 0;
+		while (i < end) {
+			while (i < end && !isUpper(line.charAt(i)))
+				i++;
+			int start = i;
+			while (i < end && isUpper(line.charAt(i)))
+				i++;
+			int length = i - start;
+			if (length < 4 || length > 5 || (start > 0 && Character.isLetterOrDigit(line.charAt(start - 1)))
+					|| (i < line.length() && Character.isLetterOrDigit(line.charAt(i))))
+				continue;
+			int s = indexOf(line.subSequence(start, i).toString());
+			if (s >= 0) return 1 << s;
+		}
+		return OTHER;
+	}
+
+	private static boolean isUpper(char c) {
+		return c >= 'A' && c <= 'Z';
+	}
+
+	private OffsetIndex(File input, MappedByteBuffer buffer) {
+		this.input = input;
+		this.buffer = buffer;
+		this.blockCount = buffer.getInt(12);
+		this.length = buffer.getLong(16);
+		this.entries = buffer.getLong(24);
+	}
+
+	private File input;
+	private MappedByteBuffer buffer;
+	private int blockCount;
+	private long length;
+	private long entries;
+
+	/**
+	 * Maps the index of <code>input</code>, null if there's none or it
+	 * doesn't fit the input any more.
+	 */
+	public static OffsetIndex open(File input) throws IOException {
+		File file = indexFile(input);
+		if (!file.isFile() || file.length() < HEADER_SIZE) return null;
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+			if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+				LogRotator.logger.warn("Unsupported index " + file.getName());
+				return null;
+			}
+			OffsetIndex index = new OffsetIndex(input, buffer);
+			if (raf.length() < HEADER_SIZE + (long) index.blockCount * RECORD_SIZE || !index.fits(input)) {
+				LogRotator.logger.warn("Stale index " + file.getName());
+				return null;
+			}
+			return index;
+		} finally {
+			raf.close();
+		}
+	}
+
+	// whether input is the file indexed, possibly appended to since
+	private boolean fits(File input) throws IOException {
+		long length = input.length();
+		long modified = input.lastModified();
+		long indexedModified = buffer.getLong(32);
+		if (length < this.length || modified < indexedModified || length == this.length && modified != indexedModified)
+			return false;
+		return fileKey(input) == buffer.getLong(40) && headHash(input, this.length) == buffer.getLong(48);
+	}
+
+	static long fileKey(File input) throws IOException {
+		Object key = Files.readAttributes(input.toPath(), BasicFileAttributes.class).fileKey();
+		if (key == null) return 0;
+		String s = key.toString();
+		return DuplicateIndex.hash(DuplicateIndex.FNV_OFFSET, s, 0, s.length());
+	}
+
+	// hash of the first bytes of the input, up to length
+	static long headHash(File input, long length) throws IOException {
+		byte[] head = new byte[(int) Math.min(HEAD_SIZE, length)];
+		RandomAccessFile raf = new RandomAccessFile(input, "r");
+		try {
+			raf.readFully(head);
+		} finally {
+			raf.close();
+		}
+		return DuplicateIndex.hash(DuplicateIndex.FNV_OFFSET, new String(head, StandardCharsets.ISO_8859_1), 0, head.length);
+	}
+
+	public int getBlockCount() {
+		return blockCount;
+	}
+
+	public long getLength() {
+		return length;
+	}
+
+	public long getEntries() {
+		return entries;
+	}
+
+	public long getOffset(int block) {
+		return buffer.getLong(HEADER_SIZE + block * RECORD_SIZE);
+	}
+
+	public long getMinTime(int block) {
+		return buffer.getLong(HEADER_SIZE + block * RECORD_SIZE + 8);
+	}
+
+	public long getMaxTime(int block) {
+		return buffer.getLong(HEADER_SIZE + block * RECORD_SIZE + 16);
+	}
+
+	public int getEntries(int block) {
+		return buffer.getInt(HEADER_SIZE + block * RECORD_SIZE + 24);
+	}
+
+	public int getSeverities(int block) {
+		return buffer.getInt(HEADER_SIZE + block * RECORD_SIZE + 28);
+	}
+
+	/**
+	 * Byte ranges of the blocks which can hold entries logged from
+	 * <code>from</code> (inclusive) to <code>to</code> (exclusive) with one
+	 * of the <code>severities</code>, adjacent blocks joined.
+	 */
+	public List<long[]> ranges(long from, long to, int severities) {
+		List<long[]> result = new ArrayList<long[]>();
+		for (int i = 0; i < blockCount; i++) {
+			if (getMaxTime(i) < from || getMinTime(i) >= to || (getSeverities(i) & severities) == 0)
+				continue;
+			long start = getOffset(i);
+			long end = i + 1 < blockCount ? getOffset(i + 1) : length;
+			add(result, start, end);
+		}
+		add(result, length, input.length());
+		return result;
+	}
+
+	private static void add(List<long[]> ranges, long start, long end) {
+		if (start >= end) return;
+		long[] last = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+		if (last != null && last[1] == start)
+			last[1] = end;
+		else
+			ranges.add(new long[] { start, end });
+	}
+
+	/**
+	 * Writes the entries of <code>input</code> logged from
+	 * <code>from</code> (inclusive) to <code>to</code> (exclusive) with one
+	 * of the <code>severities</code>, reading only the blocks which can hold
+	 * them, or the whole input if it isn't indexed. Returns the number of
+	 * entries written.
+	 */
+	public static long select(File input, long from, long to, int severities, Writer w) throws IOException {
+		OffsetIndex index = open(input);
+		List<long[]> ranges;
+		if (index != null) {
+			ranges = index.ranges(from, to, severities);
+		} else {
+			LogRotator.logger.debug("No index for " + input.getName() + ", reading all of it");
+			ranges = new ArrayList<long[]>();
+			add(ranges, 0, input.length());
+		}
+		long count = 0;
+		RandomAccessFile raf = new RandomAccessFile(input, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			StringBuilder entry = new StringBuilder();
+			for (long[] range : ranges) {
+				BufferedReader r = new BufferedReader(new InputStreamReader(new LogChunks.MappedInputStream(channel,
+						range[0], range[1])));
+				long time = -1;
+				String line;
+				entry.setLength(0);
+				while (true) {
+					line = r.readLine();
+					if (line == null || Properties.LOG_START.isLogStart(line)) {
+						if (entry.length() != 0 && time >= from && time < to
+								&& (severity(entry) & severities) != 0) {
+							w.write(entry.toString());
+							count++;
+						}
+						entry.setLength(0);
+						if (line == null) break;
+						long t = LogConditions.timestamp(line);
+						if (t >= 0)
+							time = t;
+					}
+					entry.append(line).append(Properties.NL);
+				}
+			}
+		} finally {
+			raf.close();
+		}
+		return count;
+	}
+
+	/**
+	 * Collects the blocks of an input as its lines are read and writes the
+	 * index once the whole input is read.
+	 */
+	static class Builder {
+		public Builder(File input) throws IOException {
+			this.input = input;
+			this.file = indexFile(input);
+			this.temp = new File(file.getPath() + ".tmp");
+			this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 64 * 1024));
+			out.write(new byte[HEADER_SIZE]);
+		}
+
+		private File input;
+		private File file;
+		private File temp;
+		private DataOutputStream out;
+		private int blockCount = 0;
+		private long entries = 0;
+		private long time = -1;
+
+		private long blockStart = 0;
+		private long minTime = Long.MAX_VALUE;
+		private long maxTime = Long.MIN_VALUE;
+		private int blockEntries = 0;
+		private int severities = 0;
+
+		public void line(String line, long offset) throws IOException {
+			if (!Properties.LOG_START.isLogStart(line)) return;
+			long t = LogConditions.timestamp(line);
+			if (t >= 0) {
+				if (blockEntries != 0 && offset - blockStart >= BLOCK_SIZE) {
+					endBlock();
+					blockStart = offset;
+				}
+				time = t;
+			}
+			minTime = Math.min(minTime, time);
+			maxTime = Math.max(maxTime, time);
+			severities |= severity(line);
+			blockEntries++;
+			entries++;
+		}
+
+		private void endBlock() throws IOException {
+			out.writeLong(blockStart);
+			out.writeLong(minTime);
+			out.writeLong(maxTime);
+			out.writeInt(blockEntries);
+			out.writeInt(severities);
+			blockCount++;
+			minTime = Long.MAX_VALUE;
+			maxTime = Long.MIN_VALUE;
+			blockEntries = 0;
+			severities = 0;
+		}
+
+		/**
+		 * Writes the index of the first <code>length</code> bytes.
+		 */
+		public void finish(long length) throws IOException {
+			try {
+				if (blockEntries != 0 || blockCount == 0) {
+					if (blockEntries == 0)
+						minTime = maxTime = -1;
+					endBlock();
+				}
+				out.close();
+				RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+				try {
+					raf.writeInt(MAGIC);
+					raf.writeInt(VERSION);
+					raf.writeInt(BLOCK_SIZE);
+					raf.writeInt(blockCount);
+					raf.writeLong(length);
+					raf.writeLong(entries);
+					raf.writeLong(input.lastModified());
+					raf.writeLong(fileKey(input));
+					raf.writeLong(headHash(input, length));
+				} finally {
+					raf.close();
+				}
+				file.delete();
+				if (!temp.renameTo(file))
+					throw new IOException("Failed renaming " + temp + " to " + file);
+				LogRotator.logger.debug("Indexed " + entries + " entries in " + blockCount + " blocks: " + file.getName());
+			} finally {
+				temp.delete();
+			}
+		}
+
+		public void abort() {
+			try {
+				out.close();
+			} catch (IOException e) {
+			}
+			temp.delete();
+		}
+	}
+
+	/**
+	 * Reads lines from bytes, tracking the offset of every line for the
+	 * builder, if there's one. Lines end with <code>\n</code> or
+	 * <code>\r\n</code>. Writes the index when closed at the end of the
+	 * input, drops it otherwise.
+	 */
+	static class LineReader implements LineSource {
+		public LineReader(InputStream in, Builder builder) {
+			this(in, builder, 0);
+		}
+
+		/**
+		 * Reads <code>in</code> positioned at <code>offset</code>.
+		 */
+		public LineReader(InputStream in, Builder builder, long offset) {
+			this.in = in;
+			this.builder = builder;
+			this.offset = offset;
+			this.lineStart = offset;
+		}
+
+		private InputStream in;
+		private Builder builder;
+		private byte[] buffer = new byte[64 * 1024];
+		private int pos = 0;
+		private int limit = 0;
+		private byte[] line = new byte[256];
+		private long offset = 0;
+		private long lineStart = 0;
+		private boolean eof = false;
+
+		/**
+		 * Offset of the line last read.
+		 */
+		public long getLineStart() {
+			return lineStart;
+		}
+
+		@Override
+		public String readLine() throws IOException {
+			if (eof) return null;
+			int length = 0;
+			while (true) {
+				if (pos == limit) {
+					limit = in.read(buffer, 0, buffer.length);
+					pos = 0;
+					if (limit <= 0) {
+						limit = 0;
+						eof = true;
+						if (length == 0) return null;
+						break;
+					}
+				}
+				int start = pos;
+				while (pos < limit && buffer[pos] != '\n')
+					pos++;
+				int n = pos - start;
+				if (length + n > line.length) {
+					byte[] grown = new byte[Math.max(length + n, 2 * line.length)];
+					System.arraycopy(line, 0, grown, 0, length);
+					line = grown;
+				}
+				System.arraycopy(buffer, start, line, length, n);
+				length += n;
+				if (pos < limit) {
+					pos++;
+					break;
+				}
+			}
+			lineStart = offset;
+			offset += length + (eof ? 0 : 1);
+			if (length > 0 && line[length - 1] == '\r')
+				length--;
+			String s = new String(line, 0, length);
+			if (builder != null)
+				builder.line(s, lineStart);
+			return s;
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				in.close();
+			} finally {
+				if (builder != null && eof) {
+					try {
+						builder.finish(offset);
+					} catch (IOException e) {
+						LogRotator.logger.warn("Failed writing index", e);
+						builder.abort();
+					}
+				} else if (builder != null)
+					builder.abort();
+			}
+		}
+	}
+}
@@ -0,0 +1,275 @@
+package org.romanprotsiuk.logrotator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A pattern list matched in a single pass. For every pattern the longest
+ * literal it can't match without (e.g. <code>@AnnoyingService</code> of an
+ * <code>IGNORE_LIST</code> pattern) is extracted, and all literals are
+ * searched at once with an Aho-Corasick automaton. Only patterns whose
+ * literal occurs are confirmed with their regex, so the cost per line stays
+ * flat as the list grows. Patterns without a usable literal are always
+ * confirmed.
+ * <p>
+ * Holds reusable matchers, so an instance is single-threaded.
+ */
+class PatternSet {
+
+	private static final int UNSUPPORTED_FLAGS = Pattern.CASE_INSENSITIVE | Pattern.COMMENTS | Pattern.LITERAL;
+
+	public PatternSet(Collection<Pattern> patterns) {
+		this.patterns = patterns.toArray(new Pattern[patterns.size()]);
+		this.matchers = new Matcher[this.patterns.length];
+		this.literals = new String[this.patterns.length];
+		this.candidates = new boolean[this.patterns.length];
+		List<Integer> always = new ArrayList<Integer>();
+		for (int i = 0; i < this.patterns.length; i++) {
+			matchers[i] = this.patterns[i].matcher("");
+			literals[i] = requiredLiteral(this.patterns[i]);
+			if (literals[i] == null)
+				always.add(i);
+		}
+		this.alwaysConfirm = new int[always.size()];
+		for (int i = 0; i < alwaysConfirm.length; i++)
+			alwaysConfirm[i] = always.get(i);
+		build();
+	}
+
+	private Pattern[] patterns;
+	private Matcher[] matchers;
+	private String[] literals;
+	private int[] alwaysConfirm;
+	private boolean[] candidates;
+
+	// automaton: per state sorted edge labels and targets, failure link and
+	// indexes of the patterns whose literal ends there
+	private char[][] labels;
+	private int[][] targets;
+	private int[] failure;
+	private int[][] outputs;
+
+	public int size() {
+		return patterns.length;
+	}
+
+	public Pattern get(int idx) {
+		return patterns[idx];
+	}
+
+	/**
+	 * Literal the pattern was prefiltered by, null if it's always confirmed.
+	 */
+	public String getLiteral(int idx) {
+		return literals[idx];
+	}
+
+	/**
+	 * Matcher of the pattern, holding the match after {@link #find} returned
+	 * its index.
+	 */
+	public Matcher matcher(int idx) {
+		return matchers[idx];
+	}
+
+	public boolean matches(CharSequence s) {
+		return find(s, 0, s.length()) >= 0;
+	}
+
+	/**
+	 * Index of the first pattern in list order that finds a match within
+	 * <code>[start, end)</code> of <code>s</code>, or -1.
+	 */
+	public int find(CharSequence s, int start, int end) {
+		if (patterns.length == 0) return -1;
+		Arrays.fill(candidates, false);
+		for (int i : alwaysConfirm)
+			candidates[i] = true;
+
+		int state = 0;
+		for (int i = start; i < end; i++) {
+			char c = s.charAt(i);
+			int next;
+			while ((next = transition(state, c)) < 0 && state != 0)
+				state = failure[state];
+			state = Math.max(next, 0);
+			for (int p : outputs[state])
+				candidates[p] = true;
+		}
+
+		for (int i = 0; i < patterns.length; i++)
+			if (candidates[i] && matchers[i].reset(s).region(start, end).find())
+				return i;
+		return -1;
+	}
+
+	private int transition(int state, char c) {
+		int idx = Arrays.binarySearch(labels[state], c);
+		return idx >= 0 ? targets[state][idx] : -1;
+	}
+
+	private void build() {
+		List<StringBuilder> edgeLabels = new ArrayList<StringBuilder>();
+		List<List<Integer>> edgeTargets = new ArrayList<List<Integer>>();
+		List<List<Integer>> out = new ArrayList<List<Integer>>();
+		edgeLabels.add(new StringBuilder());
+		edgeTargets.add(new ArrayList<Integer>());
+		out.add(new ArrayList<Integer>());
+
+		for (int p = 0; p < literals.length; p++) {
+			if (literals[p] == null) continue;
+			int state = 0;
+			for (char c : literals[p].toCharArray()) {
+				int idx = edgeLabels.get(state).indexOf(String.valueOf(c));
+				if (idx >= 0) {
+					state = edgeTargets.get(state).get(idx);
+				} else {
+					edgeLabels.get(state).append(c);
+					edgeTargets.get(state).add(edgeLabels.size());
+					state = edgeLabels.size();
+					edgeLabels.add(new StringBuilder());
+					edgeTargets.add(new ArrayList<Integer>());
+					out.add(new ArrayList<Integer>());
+				}
+			}
+			out.get(state).add(p);
+		}
+
+		int n = edgeLabels.size();
+		labels = new char[n][];
+		targets = new int[n][];
+		for (int s = 0; s < n; s++) {
+			char[] l = edgeLabels.get(s).toString().toCharArray();
+			Integer[] order = new Integer[l.length];
+			for (int i = 0; i < l.length; i++)
+				order[i] = i;
+			final char[] unsorted = l;
+			Arrays.sort(order, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer a, Integer b) {
+					return unsorted[a] - unsorted[b];
+				}
+			});
+			labels[s] = new char[l.length];
+			targets[s] = new int[l.length];
+			for (int i = 0; i < l.length; i++) {
+				labels[s][i] = l[order[i]];
+				targets[s][i] = edgeTargets.get(s).get(order[i]);
+			}
+		}
+
+		// breadth-first failure links, merging outputs of the failure states
+		failure = new int[n];
+		LinkedList<Integer> queue = new LinkedList<Integer>();
+		for (int t : targets[0])
+			queue.add(t);
+		while (!queue.isEmpty()) {
+			int s = queue.removeFirst();
+			for (int i = 0; i < labels[s].length; i++) {
+				int t = targets[s][i];
+				int f = failure[s];
+				int next;
+				while ((next = transition(f, labels[s][i])) < 0 && f != 0)
+					f = failure[f];
+				failure[t] = next >= 0 && next != t ? next : 0;
+				out.get(t).addAll(out.get(failure[t]));
+				queue.add(t);
+			}
+		}
+		outputs = new int[n][];
+		for (int s = 0; s < n; s++) {
+			outputs[s] = new int[out.get(s).size()];
+			for (int i = 0; i < outputs[s].length; i++)
+				outputs[s][i] = out.get(s).get(i);
+		}
+	}
+
+	/**
+	 * Longest literal outside of groups, character classes and optional
+	 * elements, which every match of the pattern has to contain. Null when
+	 * the pattern uses constructs that make this unreliable.
+	 */
+	static String requiredLiteral(Pattern pattern) {
+		if ((pattern.flags() & UNSUPPORTED_FLAGS) != 0) return null;
+		String re = pattern.pattern();
+		String best = "";
+		StringBuilder run = new StringBuilder();
+		int depth = 0;
+		int i = 0;
+		while (i < re.length()) {
+			char c = re.charAt(i);
+			int literal = -1;
+			if (c == '\\') {
+				if (i + 1 >= re.length()) return null;
+				char e = re.charAt(i + 1);
+				if (!Character.isLetterOrDigit(e))
+					literal = e;
+				else if ("dDsSwWbBAzZGhHvV".indexOf(e) == -1)
+					return null;
+				i += 2;
+			} else if (c == '[') {
+				i = skipClass(re, i);
+				if (i < 0) return null;
+			} else if (c == '(') {
+				if (re.startsWith("(?", i) && !re.startsWith("(?:", i)) return null;
+				depth++;
+				i++;
+			} else if (c == ')') {
+				depth--;
+				i++;
+			} else if (c == '|') {
+				if (depth == 0) return null;
+				i++;
+			} else if (c == '{') {
+				i = re.indexOf('}', i) + 1;
+				if (i == 0) return null;
+			} else if (".^$?*+".indexOf(c) != -1) {
+				i++;
+			} else {
+				literal = c;
+				i++;
+			}
+
+			if (literal >= 0 && depth == 0) {
+				// a quantifier makes the char optional or repeated
+				char q = i < re.length() ? re.charAt(i) : 0;
+				boolean optional = q == '?' || q == '*' || q == '{' && re.startsWith("{0", i);
+				if (!optional)
+					run.append((char) literal);
+				if (q == '?' || q == '*' || q == '+' || q == '{') {
+					if (run.length() > best.length())
+						best = run.toString();
+					run.setLength(0);
+				}
+			} else if (literal < 0 || depth != 0) {
+				if (run.length() > best.length())
+					best = run.toString();
+				run.setLength(0);
+			}
+		}
+		if (run.length() > best.length())
+			best = run.toString();
+		return best.length() != 0 ? best : null;
+	}
+
+	private static int skipClass(String re, int i) {
+		int depth = 0;
+		while (i < re.length()) {
+			char c = re.charAt(i);
+			if (c == '\\')
+				i++;
+			else if (c == '[')
+				depth++;
+			else if (c == ']' && --depth == 0)
+				return i + 1;
+			i++;
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,42 @@
+package org.romanprotsiuk.logrotator;
+
+/**
+ * Logs progress and ETA of every active file and the job throughput at
+ * debug level.
+ */
+class ProgressLogger implements RotationListener {
+
+	@Override
+	public void fileStarted(RotationMetrics.FileProgress file) {
+	}
+
+	@Override
+	public void fileCompleted(RotationMetrics.FileProgress file, boolean success) {
+		if (!success)
+			LogRotator.logger.warn("Failed processing " + file.getName());
+	}
+
+	@Override
+	public void report(RotationMetrics metrics) {
+		if (!LogRotator.logger.isDebugEnabled()) return;
+		int queued = 0;
+		for (RotationMetrics.FileProgress file : metrics.getFiles().values()) {
+			if (!file.isStarted()) {
+				queued++;
+				continue;
+			}
+			long eta = Math.max(0, file.getEta()) / 1000;
+			LogRotator.logger.debug(String.format("%s is processed %.2f%%, ETA %d:%02d", file.getName(),
+					file.getProgress(), eta / 60, eta % 60));
+		}
+		if (queued > 0)
+			LogRotator.logger.debug(queued + " files in queue");
+		LogRotator.logger.debug(String.format(
+				"%.1f MB/s, %.0f entries/s; %d read, %d written, %d filtered, %d skipped, %d deduplicated; "
+						+ "match %d ms, filter %d ms, write %d ms; %d open writers",
+				metrics.getBytesReadPerSecond() / (1024 * 1024), metrics.getEntriesReadPerSecond(),
+				metrics.getEntriesRead(), metrics.getEntriesWritten(), metrics.getEntriesFiltered(),
+				metrics.getEntriesSkipped(), metrics.getEntriesDeduplicated(), metrics.getMatchTime(),
+				metrics.getFilterTime(), metrics.getWriteTime(), metrics.getOpenWriters()));
+	}
+}
@@ -32,6 +32,8 @@ public class Properties extends java.util.Properties {
 
 	public static final Pattern LOG;
 
+	public static final LogStartDetector LOG_START;
+
 	public static final Pattern SIGNIFICANT_STACK_INFO;
 
 	public static final Pattern CAUSED_BY;
@@ -57,6 +59,7 @@ public class Properties extends java.util.Properties {
 
 		// Patterns compilation
 		LOG = logPattern(new HashMap<String, String>());
+		LOG_START = new LogStartDetector(LOG);
 
 		SIGNIFICANT_STACK_INFO = Pattern.compile(instance.getProperty("SIGNIFICANT_STACK_INFO"),
 				Pattern.MULTILINE);
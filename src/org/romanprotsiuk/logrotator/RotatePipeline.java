@@ -0,0 +1,338 @@
+package org.romanprotsiuk.logrotator;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Staged rotation of one input. A reader stage splits the input into
+ * entries and hands them in batches to parsing tasks, which filter the
+ * entries and choose their outputs (the regex matching and, in error mode,
+ * the folder creation). The rotating thread then takes the batches in input
+ * order and does what depends on the preceding entries: duplicate checks,
+ * switching outputs and keeping the initial log. Writes are handed to an
+ * output thread, so that the rotating thread doesn't wait for the disk.
+ * <p>
+ * All queues are bounded, so a slow stage holds back the ones before it.
+ * The reader and the output stage run on virtual threads when the runtime
+ * has them (Java 21+) and on cached daemon threads otherwise. Each batch is
+ * parsed by a task of its own on a pool shared by all pipelines and sized
+ * to the available cores. Tasks never wait, so pipelines of files rotated
+ * at once share the pool instead of one holding all of its threads; each
+ * has up to about twice its <code>workers</code> batches in flight.
+ */
+class RotatePipeline {
+
+	public static final int BATCH_SIZE = 256;
+
+	private static final int OUTPUT_CAPACITY = 1024;
+	private static final long POLL_INTERVAL = 100;
+
+	private static ExecutorService ioExecutor = null;
+	private static ExecutorService cpuExecutor = null;
+
+	static synchronized ExecutorService getIoExecutor() {
+		if (ioExecutor == null) {
+			try {
+				ioExecutor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+			} catch (Exception e) {
+				ioExecutor = Executors.newCachedThreadPool(daemonThreads("logrotator-io"));
+			}
+		}
+		return ioExecutor;
+	}
+
+	static synchronized ExecutorService getCpuExecutor() {
+		if (cpuExecutor == null)
+			cpuExecutor = Executors.newFixedThreadPool(Math.max(1, Runtime.getRuntime().availableProcessors()),
+					daemonThreads("logrotator-parse"));
+		return cpuExecutor;
+	}
+
+	private static ThreadFactory daemonThreads(final String name) {
+		return new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, name);
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+
+	public RotatePipeline(LogConditions conditions, boolean splitByError, boolean compress, WriterPool writers,
+			int workers) {
+		this.conditions = conditions;
+		this.splitByError = splitByError;
+		this.compress = compress;
+		this.ordered = new ArrayBlockingQueue<Batch>(2 * Math.max(1, workers) + 1);
+		this.output = new Output(writers);
+	}
+
+	private LogConditions conditions;
+	private boolean splitByError;
+	private boolean compress;
+	private String outputFolder;
+	private BlockingQueue<Batch> ordered;
+	private ConcurrentLinkedQueue<Parser> parsers = new ConcurrentLinkedQueue<Parser>();
+	private Output output;
+	private volatile boolean stopped = false;
+
+	/**
+	 * Entries with the results of the parsing stage.
+	 */
+	static class Batch {
+		public Batch(int capacity) {
+			entries = new String[capacity];
+			accepted = new boolean[capacity];
+			skipped = new boolean[capacity];
+			filtered = new String[capacity];
+			targets = new String[capacity];
+		}
+		public String[] entries;
+		public boolean[] accepted;
+		public boolean[] skipped;
+		public String[] filtered;
+		public String[] targets;
+		public int size = 0;
+		private CountDownLatch ready = new CountDownLatch(1);
+		private Throwable error = null;
+
+		void done(Throwable error) {
+			this.error = error;
+			ready.countDown();
+		}
+	}
+
+	private static final Batch END = new Batch(0);
+
+	public Output getOutput() {
+		return output;
+	}
+
+	/**
+	 * Starts the reader, which hands batches on to be parsed.
+	 */
+	public void start(final LineSource r, final String outputFolder, final RotationMetrics.FileProgress progress,
+			final int percLimit) {
+		this.outputFolder = outputFolder;
+		getIoExecutor().execute(new Runnable() {
+			@Override
+			public void run() {
+				read(r, progress, percLimit);
+			}
+		});
+	}
+
+	/**
+	 * Next batch in input order, null at the end of the input.
+	 */
+	public Batch next() throws IOException {
+		try {
+			Batch b = ordered.take();
+			if (b == END) return null;
+			b.ready.await();
+			if (b.error instanceof IOException)
+				throw (IOException) b.error;
+			if (b.error != null)
+				throw new RuntimeException(b.error);
+			return b;
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Stops the reader and the parsing, e.g. when rotation failed.
+	 */
+	public void stop() {
+		stopped = true;
+		ordered.clear();
+	}
+
+	private void read(LineSource r, RotationMetrics.FileProgress progress, int percLimit) {
+		StringBuilder entry = new StringBuilder();
+		Batch batch = new Batch(BATCH_SIZE);
+		try {
+			String line;
+			while ((line = r.readLine()) != null) {
+				if (Properties.LOG_START.isLogStart(line) && entry.length() != 0) {
+					batch.entries[batch.size++] = entry.toString();
+					entry.setLength(0);
+					if (batch.size == BATCH_SIZE) {
+						if (!hand(batch)) return;
+						batch = new Batch(BATCH_SIZE);
+					}
+				}
+				entry.append(line).append(Properties.NL);
+				if (percLimit > 0 && progress != null && progress.getProgress() > percLimit) {
+					LogRotator.logger.warn("Limit reached. There's still log to rotate.");
+					break;
+				}
+			}
+			if (entry.length() != 0)
+				batch.entries[batch.size++] = entry.toString();
+			if (batch.size != 0 && !hand(batch)) return;
+			put(ordered, END);
+		} catch (Throwable e) {
+			// the rotating thread gets the error with the batch
+			Batch failed = new Batch(0);
+			failed.done(e);
+			put(ordered, failed);
+		} finally {
+			try {
+				r.close();
+			} catch (IOException e) {
+				LogRotator.logger.warn("Failed closing input", e);
+			}
+		}
+	}
+
+	private boolean hand(final Batch batch) {
+		if (!put(ordered, batch)) return false;
+		getCpuExecutor().execute(new Runnable() {
+			@Override
+			public void run() {
+				parse(batch);
+			}
+		});
+		return true;
+	}
+
+	private boolean put(BlockingQueue<Batch> queue, Batch batch) {
+		try {
+			while (!stopped)
+				if (queue.offer(batch, POLL_INTERVAL, TimeUnit.MILLISECONDS))
+					return true;
+		} catch (InterruptedException e) {
+			stopped = true;
+		}
+		return false;
+	}
+
+	/**
+	 * Matchers and caches of a parsing task, reused by the next one.
+	 */
+	private class Parser {
+		public Parser() {
+			conditions = new LogConditions(RotatePipeline.this.conditions);
+			writer = new RotateWriter(conditions);
+			writer.setCompress(compress);
+		}
+		public LogConditions conditions;
+		public RotateWriter writer;
+	}
+
+	private void parse(Batch b) {
+		if (stopped) {
+			b.done(null);
+			return;
+		}
+		Parser p = parsers.poll();
+		if (p == null)
+			p = new Parser();
+		try {
+			for (int i = 0; i < b.size; i++)
+				prepare(p.conditions, p.writer, b, i);
+			b.done(null);
+		} catch (Throwable e) {
+			b.done(e);
+		} finally {
+			parsers.offer(p);
+		}
+	}
+
+	private void prepare(LogConditions c, RotateWriter w, Batch b, int i) {
+		String entry = b.entries[i];
+		String text = entry;
+		if (c.isCheckTailLines()) {
+			text = b.filtered[i] = c.filter(entry);
+			b.accepted[i] = text != null;
+		} else {
+			b.accepted[i] = c.accept(entry);
+		}
+		b.skipped[i] = c.wasSkipped();
+		if (b.accepted[i])
+			b.targets[i] = splitByError ? w.errorFileName(text, outputFolder) : w.entryDate(text);
+	}
+
+	/**
+	 * Output stage, writing through the writer pool on a thread of its own
+	 * in the order the writes were handed over. There's one such thread,
+	 * as every pool write holds the pool lock anyway. After a failed write
+	 * the rest are dropped, but still taken off the queue so that the
+	 * rotating thread doesn't block; the error is thrown from the next
+	 * {@link #write(String, String)} or from {@link #finish()}.
+	 */
+	static class Output implements Runnable {
+		public Output(WriterPool writers) {
+			this.writers = writers;
+			getIoExecutor().execute(this);
+		}
+
+		private WriterPool writers;
+		private BlockingQueue<String[]> queue = new ArrayBlockingQueue<String[]>(OUTPUT_CAPACITY);
+		private CountDownLatch finished = new CountDownLatch(1);
+		private volatile Throwable error = null;
+
+		@Override
+		public void run() {
+			try {
+				String[] write;
+				while ((write = queue.take()).length != 0) {
+					if (error != null) continue;
+					try {
+						writers.write(write[0], write[1]);
+					} catch (Throwable e) {
+						error = e;
+					}
+				}
+			} catch (InterruptedException e) {
+				error = e;
+			} finally {
+				finished.countDown();
+			}
+		}
+
+		public void write(String fileName, String lines) throws IOException {
+			checkError();
+			put(new String[] { fileName, lines });
+		}
+
+		/**
+		 * Waits until everything is written and ends the output thread.
+		 */
+		public void finish() throws IOException {
+			put(new String[0]);
+			try {
+				finished.await();
+			} catch (InterruptedException e) {
+				throw new IOException(e);
+			}
+			checkError();
+		}
+
+		// waits for room as long as the output thread runs
+		private void put(String[] write) throws IOException {
+			try {
+				while (finished.getCount() > 0)
+					if (queue.offer(write, POLL_INTERVAL, TimeUnit.MILLISECONDS))
+						return;
+			} catch (InterruptedException e) {
+				throw new IOException(e);
+			}
+			checkError();
+		}
+
+		private void checkError() throws IOException {
+			if (error != null)
+				throw new IOException("Failed writing outputs", error);
+		}
+	}
+}
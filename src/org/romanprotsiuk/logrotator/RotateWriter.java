@@ -5,108 +5,363 @@ import java.io.File;
 import java.io.FileFilter;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.Writer;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
 import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 
 class RotateWriter {
 	
 	private static final String LOG_NAME_PATTERN = "%s.%s.log";
 	private static final int FILE_NAME_MAX_LENGTH = 64;
+	private static final int RESOLVED_CACHE_SIZE = 1024;
 
 	public RotateWriter(LogConditions conditions) {
 		this(conditions, null);
 	}
 
 	public RotateWriter(LogConditions conditions, String fileNameBase) {
+		this(conditions, fileNameBase, null);
+	}
+
+	public RotateWriter(LogConditions conditions, String fileNameBase, WriterPool writers) {
 		this.conditions = conditions;
 		this.fileNameBase = fileNameBase;
+		if (fileNameBase == null && writers != null) {
+			this.writers = writers;
+			writers.acquire();
+		}
 	}
 	
 	public String date = null;
-	public String previousLines = null;		
 	public Writer w = null;
 	public StringBuilder b = new StringBuilder();
 	public StringBuilder initialLog = null;
 	
 	private String fileNameBase = null;
 	private LogConditions conditions;
+	private WriterPool writers = null;
+	private String pooledFile = null;
+	// files written through the pool, closed when this writer is
+	private Set<String> pooledFiles = new HashSet<String>();
+	// file written to now, and the ones switched to, for checkpoints
+	private String outputFile = null;
+	private Set<String> outputs = null;
+	private boolean compress = false;
+	private RotationMetrics metrics = null;
+	private RotatePipeline.Output output = null;
 	
-	private String lines = null;
-	private String filteredLines = null;
+	// filter result and output of the entry, computed ahead by a pipeline worker
+	private boolean prepared = false;
+	private boolean preparedAccepted;
+	private boolean preparedSkipped;
+	private String preparedFiltered;
+	private String preparedTarget;
+	
+	/**
+	 * Makes new outputs gzip-compressed, with a <code>.gz</code> suffix.
+	 */
+	public void setCompress(boolean compress) {
+		this.compress = compress;
+	}
+	
+	/*
+	 * The entry is collected in b and the previous one is kept in previous;
+	 * nextStep() swaps the two builders, so a pass-through entry is matched,
+	 * filtered and written through CharSequence views without being copied.
+	 */
+	private StringBuilder previous = new StringBuilder();
+	private boolean hasPrevious = false;
+	private boolean cleared = false;
 	private boolean filtered = false;
-	private int bufferLength = 0;
+	private boolean accepted = true;
+	private String filteredLines = null;
+	private String lines = null;
+	private int linesLength = -1;
+	private char[] chars = new char[0];
+	private Matcher logMatcher = LogEntry.PATTERN.matcher("");
+	
+	/*
+	 * The current entry over b, parsed from the match which detected its
+	 * first line (kept in pending until the line is added).
+	 */
+	private LogEntry entry = new LogEntry(b);
+	private LogEntry pending = new LogEntry();
+	private String pendingLine = null;
+	private PatternSet methodInfoPatterns = new PatternSet(Properties.METHOD_INFO_IN_STACK_LIST);
+	
+	/*
+	 * Errors repeat, so their output names and signatures are resolved once.
+	 * An entry whose text less the timestamp was seen is found by a 64-bit
+	 * hash of that text, with no copying and no regex. Otherwise results are
+	 * found by a hash of what extractMethodId looks at, the first two lines
+	 * less the timestamp and the last significant stack line. Texts and keys
+	 * are kept with the results to rule out collisions. Folders are created
+	 * once per writer.
+	 */
+	private Map<Long, ResolvedText> resolvedTexts = cache();
+	private Map<Long, ResolvedError> resolved = cache();
+	private Set<String> createdFolders = new HashSet<String>();
+	
+	private static <V> Map<Long, V> cache() {
+		return new LinkedHashMap<Long, V>(64, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, V> eldest) {
+				return size() > RESOLVED_CACHE_SIZE;
+			}
+		};
+	}
+	
+	private static class ResolvedText {
+		public ResolvedText(String text, ResolvedError error) {
+			this.text = text;
+			this.error = error;
+		}
+		public String text;
+		public ResolvedError error;
+	}
+	
+	/**
+	 * Sanitized output name parts and signature of an error, all null if
+	 * it has no location.
+	 */
+	private static class ResolvedError {
+		public String key;
+		public String classFolder;
+		public String methodFolder;
+		public String name;
+		public String signature;
+	}
 	
-	private boolean bufferNotEmpty() {
-		return b != null && b.length() != 0;
+	/**
+	 * Current entry, after filtering if it was filtered, or null if it's
+	 * empty, cleared or filtered out.
+	 */
+	public CharSequence getEntry() {
+		if (cleared || b.length() == 0) return null;
+		if (!filtered) return b;
+		return !accepted ? null : filteredLines != null ? filteredLines : b;
+	}
+	
+	/**
+	 * The current entry, parsed at most once.
+	 */
+	public LogEntry getLogEntry() {
+		CharSequence e = getEntry();
+		if (e == b) return entry;
+		return e != null ? new LogEntry(e) : null;
+	}
+	
+	// the current entry if lines are its text
+	private LogEntry entryFor(String lines) {
+		return getEntry() == b && lines == getLines() ? entry : new LogEntry(lines);
 	}
 	
 	public String getLines() {
-		if (bufferNotEmpty()) {
-			if (b.length() != bufferLength) {
-				lines = b.toString();
-				if (filtered)
-					filterLines();
-				bufferLength = b.length();
-			}
-		} else if (bufferLength != 0) {
-			lines = null;
-			if (filtered)
-				filteredLines = null;
-			bufferLength = 0;
+		CharSequence entry = getEntry();
+		if (entry != b) return entry != null ? entry.toString() : null;
+		if (linesLength != b.length()) {
+			lines = b.toString();
+			linesLength = b.length();
 		}
-		return filtered ? filteredLines : lines;
+		return lines;
+	}
+	
+	public String getPreviousLines() {
+		return hasPrevious ? previous.toString() : null;
+	}
+	
+	public void setPreviousLines(String previousLines) {
+		previous.setLength(0);
+		hasPrevious = previousLines != null;
+		if (hasPrevious)
+			previous.append(previousLines);
 	}
 	
 	public void nextStep() {
+		hasPrevious = !cleared && b.length() != 0;
+		StringBuilder t = previous;
+		previous = b;
+		b = t;
+		b.setLength(0);
+		entry.reset(b);
+		lines = null;
+		linesLength = -1;
+		cleared = false;
+		prepared = false;
 		clearFilter();
-		previousLines = getLines();
-		b = new StringBuilder();
-		bufferLength = 0;
-		clearLines();
 	}
 	
 	public void clearLines() {
-		lines = null;
+		cleared = true;
 		clearFilter();
 	}
 	
 	public void clearFilter() {
 		filteredLines = null;
 		filtered = false;
+		accepted = true;
 	}
 	
 	public void clearPreviousLines() {
-		previousLines = null;
+		hasPrevious = false;
 	}
 
 	public boolean isDuplicate() {
-		return conditions.isDuplicate(getLines(), previousLines);
+		return conditions.isDuplicate(getLogEntry(), hasPrevious ? previous : null);
 	}
 	
 	public boolean filterLines() {
-		filteredLines = conditions.filter(lines);
+		if (conditions.isCheckTailLines()) {
+			filteredLines = cleared ? null : prepared ? preparedFiltered : conditions.filter(getLines());
+			accepted = filteredLines != null;
+		} else {
+			accepted = !cleared && (prepared ? preparedAccepted : conditions.accept(entry));
+		}
 		filtered = true;
 		return notEmpty();
 	}
 	
+	/**
+	 * Whether the entry last rejected by {@link #filterLines()} matched a
+	 * skip pattern.
+	 */
+	public boolean wasSkipped() {
+		return prepared ? preparedSkipped : conditions.wasSkipped();
+	}
+	
+	/**
+	 * Supplies the results of {@link #filterLines()} and of choosing the
+	 * output for the current entry, so they aren't computed again; see
+	 * {@link RotatePipeline}. A null <code>target</code> leaves choosing the
+	 * output to {@link #switchFile(String)}.
+	 */
+	void setPrepared(boolean accepted, boolean skipped, String filteredLines, String target) {
+		this.prepared = true;
+		this.preparedAccepted = accepted;
+		this.preparedSkipped = skipped;
+		this.preparedFiltered = filteredLines;
+		this.preparedTarget = target;
+	}
+	
+	/**
+	 * Hands all writes to the output stage of a pipeline, through the
+	 * writer pool, by file name.
+	 */
+	void setOutput(RotatePipeline.Output output, WriterPool pool) {
+		this.output = output;
+		if (writers == null) {
+			writers = pool;
+			pool.acquire();
+		}
+	}
+	
 	public boolean notEmpty() {
-		return getLines() != null;
+		return getEntry() != null;
+	}
+	
+	/**
+	 * Counts writers opened by this writer (outside of the pool).
+	 */
+	public void setMetrics(RotationMetrics metrics) {
+		this.metrics = metrics;
 	}
 	
 	public void closeWriter() {
+		pooledFile = null;
+		outputFile = null;
 		if (w == null) return;
 		try {
 			w.close();
 		} catch (IOException e) {
 			throw new RuntimeException(e);
+		} finally {
+			w = null;
+			if (metrics != null)
+				metrics.writerClosed();
 		}
 	}
 	
 	public void setWriter(Writer writer) {
 		closeWriter();
 		w = writer;
+		if (w != null && metrics != null)
+			metrics.writerOpened();
+	}
+	
+	/**
+	 * Switches output to the given file, through the writer pool when there
+	 * is one.
+	 */
+	public void setWriter(String fileName) throws IOException {
+		if (writers == null) {
+			setWriter(createWriter(fileName, true));
+		} else {
+			closeWriter();
+			pooledFile = fileName;
+			pooledFiles.add(fileName);
+		}
+		outputFile = fileName;
+		if (outputs != null)
+			outputs.add(fileName);
+	}
+	
+	/**
+	 * Adds the name of every output file switched to from now on to
+	 * <code>outputs</code>.
+	 */
+	void trackOutputs(Set<String> outputs) {
+		this.outputs = outputs;
+	}
+	
+	/**
+	 * Notes an output written to other than through this writer.
+	 */
+	void written(String fileName) {
+		if (outputs != null)
+			outputs.add(fileName);
+	}
+	
+	/**
+	 * Output file being written to, or null.
+	 */
+	String getOutputFile() {
+		return outputFile;
+	}
+	
+	/**
+	 * Pushes everything written so far to the output files.
+	 */
+	public void flush() throws IOException {
+		if (w != null)
+			w.flush();
+		if (writers != null)
+			writers.flushAll();
+	}
+	
+	/**
+	 * Closes the current writer and the pooled writers of the files written
+	 * to, and releases the writer pool.
+	 */
+	public void close() {
+		try {
+			closeWriter();
+		} finally {
+			if (writers != null) {
+				try {
+					writers.release(pooledFiles);
+				} finally {
+					writers = null;
+					pooledFiles.clear();
+				}
+			}
+		}
 	}
 	
 	public void flushLines() {
@@ -114,24 +369,52 @@ class RotateWriter {
 	}
 	
 	public void flushLines(boolean flushInitialLog) {
-		if (notEmpty() && w != null) {
+		if (notEmpty() && (w != null || pooledFile != null)) {
 			try {
+				if (pooledFile != null) {
+					String lines = getLines();
+					if (flushInitialLog && initialLog != null) {
+						lines = initialLog.toString() + lines;
+						initialLog = null;
+					}
+					if (output != null)
+						output.write(pooledFile, lines);
+					else
+						writers.write(pooledFile, lines);
+					return;
+				}
 				if (flushInitialLog && initialLog != null) {
-					w.write(initialLog.toString());
+					write(initialLog);
 					initialLog = null;
 				}
-				w.write(getLines());
+				write(getEntry());
 			} catch (IOException e) {
 				throw new RuntimeException(e);
 			}
 		}
 	}
 	
+	// Writer.append(CharSequence) would copy the entry into a new String
+	private void write(CharSequence entry) throws IOException {
+		if (entry instanceof String) {
+			w.write((String) entry);
+			return;
+		}
+		StringBuilder sb = (StringBuilder) entry;
+		if (chars.length < sb.length())
+			chars = new char[Math.max(sb.length(), 2 * chars.length)];
+		sb.getChars(0, sb.length(), chars, 0);
+		w.write(chars, 0, sb.length());
+	}
+	
 	public RotateWriter addLine(String line) {
 		return addLine(line, true);
 	}
 	
 	public RotateWriter addLine(String line, boolean addNL) {
+		if (b.length() == 0 && line == pendingLine)
+			entry.parsed(pending);
+		pendingLine = null;
 		b.append(line);
 		if (addNL)
 			b.append(Properties.NL);
@@ -140,41 +423,153 @@ class RotateWriter {
 	
 	public void switchFile(String outputFolder) throws IOException {
 		if (fileNameBase == null) {
-			StackMethodId mid = extractMethodId(getLines());
-			if (mid.method != null && mid.message != null) {
-				String dirName = outputFolder + "/" + mid.className.replaceAll("\\\\|/|:|<|>", "_");
-				RotateWriter.checkOutput(dirName, false);
-				dirName += "/" + mid.method.replaceAll("\\\\|/|:|<|>", "_");
-				RotateWriter.checkOutput(dirName, false);
-				
-				String name = refineMessage(mid.message).replaceAll("\\\\|/|:|<|>", "_");
-				if (name.length() > FILE_NAME_MAX_LENGTH)
-					name = name.substring(0, FILE_NAME_MAX_LENGTH);
-				if (mid.lineNo != null)
-					name = mid.lineNo + "_" + name;
-				
-				setWriter(createWriter(dirName + "/" + name + ".log", true));
+			String fileName = prepared && preparedTarget != null ? preparedTarget : errorFileName(getLines(), outputFolder);
+			if (fileName != null) {
+				setWriter(fileName);
 			} else {
 				LogRotator.logger.warn("Cannot create error log file name for:\n" + getLines());
-				initialLog = b;
+				initialLog = new StringBuilder(b);
+			}
+		} else if (prepared && preparedTarget != null) {
+			if (!preparedTarget.equals(date)) {
+				date = preparedTarget;
+				newLog(outputFolder);
 			}
 		} else {
-			Matcher m = Properties.LOG.matcher(LogConditions.firstLine(getLines()));
-			if (!m.find())
+			LogEntry e = getLogEntry();
+			if (!e.isLogEntry())
 				throw new RuntimeException("Log entry not found");
-			String dateMarker = m.group(1);
-			if (dateMarker == null && date != null || !dateMarker.equals(date)) {
-				date = dateMarker;
+			if (!regionEquals(e.getText(), e.start(1), e.end(1), date)) {
+				date = e.getDate();
 				if (date != null) {
-					setWriter(createNewLog(outputFolder, fileNameBase, date));
+					newLog(outputFolder);
 				} else {
 					LogRotator.logger.warn("Cannot create error log file name from null-date for:\n" + getLines());
-					initialLog = b;
+					initialLog = new StringBuilder(b);
 				}
 			}
 		}
 	}
 	
+	/**
+	 * Goes on writing by date to the output of <code>date</code>, as the
+	 * writer did before a restart.
+	 */
+	void resumeDate(String date, String outputFolder) throws IOException {
+		if (fileNameBase == null || date == null) return;
+		this.date = date;
+		newLog(outputFolder);
+	}
+	
+	private void newLog(String outputFolder) throws IOException {
+		setWriter(newLogName(outputFolder, fileNameBase, date, compress));
+	}
+	
+	/**
+	 * Per-error output file for the entry, creating its folders, or null if
+	 * the entry has no error location.
+	 */
+	String errorFileName(String lines, String outputFolder) {
+		ResolvedError error = resolve(lines);
+		if (error.name == null) return null;
+		String dirName = outputFolder + "/" + error.classFolder;
+		createFolder(dirName);
+		dirName += "/" + error.methodFolder;
+		createFolder(dirName);
+		return dirName + "/" + error.name + ".log" + (compress ? Compression.GZ : "");
+	}
+	
+	private void createFolder(String dirName) {
+		if (createdFolders.contains(dirName)) return;
+		RotateWriter.checkOutput(dirName, false);
+		createdFolders.add(dirName);
+	}
+	
+	private ResolvedError resolve(String lines) {
+		int from = LogConditions.timestampLength(lines);
+		long hash = DuplicateIndex.hash(DuplicateIndex.FNV_OFFSET, lines, from, lines.length());
+		ResolvedText text = resolvedTexts.get(hash);
+		if (text != null && text.text.length() == lines.length() - from
+				&& lines.regionMatches(from, text.text, 0, text.text.length()))
+			return text.error;
+		ResolvedError error = resolve(lines, from);
+		resolvedTexts.put(hash, new ResolvedText(lines.substring(from), error));
+		return error;
+	}
+	
+	private ResolvedError resolve(String lines, int from) {
+		Matcher last = lastSignificant(lines);
+		int to = lineEnd(lines, lineEnd(lines, 0) + Properties.NL.length());
+		long hash = DuplicateIndex.hash(DuplicateIndex.FNV_OFFSET, lines, from, to);
+		String key = lines.substring(from, to);
+		if (last != null) {
+			hash = DuplicateIndex.hash(hash, lines, last.start(), last.end());
+			key += Properties.NL + last.group();
+		}
+		ResolvedError error = resolved.get(hash);
+		if (error != null && error.key.equals(key)) return error;
+		
+		error = new ResolvedError();
+		error.key = key;
+		StackMethodId mid = extractMethodId(lines, entryFor(lines), last);
+		if (mid.method != null && mid.message != null) {
+			error.classFolder = mid.className.replaceAll("\\\\|/|:|<|>", "_");
+			error.methodFolder = mid.method.replaceAll("\\\\|/|:|<|>", "_");
+			String name = refineMessage(mid.message).replaceAll("\\\\|/|:|<|>", "_");
+			if (name.length() > FILE_NAME_MAX_LENGTH)
+				name = name.substring(0, FILE_NAME_MAX_LENGTH);
+			if (mid.lineNo != null)
+				name = mid.lineNo + "_" + name;
+			error.name = name;
+			String location = mid.className + "." + mid.method + (mid.lineNo.length() != 0 ? ":" + mid.lineNo : "");
+			error.signature = location + " - " + refineMessage(mid.message);
+		}
+		resolved.put(hash, error);
+		return error;
+	}
+	
+	// end of the line starting at from, as LogConditions.getLine sees it
+	private static int lineEnd(String lines, int from) {
+		if (from >= lines.length()) return lines.length();
+		int end = lines.indexOf(Properties.NL, from);
+		return end >= 0 ? end : lines.length();
+	}
+	
+	/**
+	 * The matcher on the last significant stack line, the one the error
+	 * location is taken from, or null if there's none.
+	 */
+	private static Matcher lastSignificant(String lines) {
+		Matcher m = Properties.SIGNIFICANT_STACK_INFO.matcher(lines);
+		int start = -1;
+		while (m.find())
+			start = m.start();
+		return start >= 0 && m.find(start) ? m : null;
+	}
+	
+	/**
+	 * Date of the entry's first line, or null if it isn't a log entry.
+	 */
+	String entryDate(CharSequence entry) {
+		return new LogEntry(entry).getDate();
+	}
+	
+	private static boolean regionEquals(CharSequence s, int start, int end, String other) {
+		if (other == null || start < 0 || other.length() != end - start) return false;
+		for (int i = start; i < end; i++)
+			if (s.charAt(i) != other.charAt(i - start))
+				return false;
+		return true;
+	}
+	
+	/**
+	 * Location and message of the error in the entry, the same parts
+	 * per-error output names are made of, or null if there's no location.
+	 */
+	String errorSignature(String lines) {
+		return resolve(lines).signature;
+	}
+	
 	private String refineMessage(String msg) {
 		if (msg.contains("Wrong subscription result"))
 			return "Wrong subscription result";
@@ -183,8 +578,12 @@ class RotateWriter {
 		return msg;
 	}
 
-	private StackMethodId extractMethodId(String lines) {
-		String firstLine = LogConditions.firstLine(lines);
+	StackMethodId extractMethodId(String lines) {
+		return extractMethodId(lines, new LogEntry(lines), lastSignificant(lines));
+	}
+	
+	private StackMethodId extractMethodId(String lines, LogEntry e, Matcher last) {
+		String firstLine = e.getFirstLine();
 		boolean found = false;
 		boolean msgOnNextLine = false;
 		Matcher m = null;
@@ -192,35 +591,31 @@ class RotateWriter {
 		String className = null;
 		String lineNo = null;
 		String msg = null;
-		for (Pattern p : Properties.METHOD_INFO_IN_STACK_LIST) {
-			m = p.matcher(firstLine);
-			if (m.find()) {
-				found = true;
-				msgOnNextLine = Properties.MESSAGE_ON_SECOND_LINE_LIST.contains(p);
-				break;
-			}
+		int idx = methodInfoPatterns.find(firstLine, 0, firstLine.length());
+		if (idx >= 0) {
+			m = methodInfoPatterns.matcher(idx);
+			found = true;
+			msgOnNextLine = Properties.MESSAGE_ON_SECOND_LINE_LIST.contains(methodInfoPatterns.get(idx));
 		}
 		if (found) {
 			msg = msgOnNextLine ? LogConditions.getLine(lines, 1) : m.group(2);
 			if (msg.contains("Duplicate entry "))
 				msg = "Duplicate entry";
 
-			m = Properties.SIGNIFICANT_STACK_INFO.matcher(lines);
-			while (m.find()) {
-				className = m.group(1);
-				method = m.group(2);
-				lineNo = m.group(4);
+			if (last != null) {
+				className = last.group(1);
+				method = last.group(2);
+				lineNo = last.group(4);
 			}
 			if (method != null)
 				return new StackMethodId(className, method, (lineNo != null ? lineNo : ""), msg);
 		}
 		
-		m = Properties.LOG.matcher(firstLine);
-		if (m.find()) {
-			method = m.group(2);
-			className = m.group(3);
-			lineNo = m.group(4);
-			msg = m.group(5);
+		if (e.isLogEntry()) {
+			method = e.getMethod();
+			className = e.getClassName();
+			lineNo = e.getLineNumber();
+			msg = e.getMessage();
 		}
 		return new StackMethodId(className, method, (lineNo != null ? lineNo : ""), msg);
 	}
@@ -239,12 +634,22 @@ class RotateWriter {
 	}
 
 	public static Writer createNewLog(String outputFolder, String inputName, String date) throws IOException {
+		return createNewLog(outputFolder, inputName, date, false);
+	}
+	
+	public static Writer createNewLog(String outputFolder, String inputName, String date, boolean compress) throws IOException {
+		return createWriter(newLogName(outputFolder, inputName, date, compress), true);
+	}
+	
+	static String newLogName(String outputFolder, String inputName, String date, boolean compress) {
 		String logName = inputName;
 		if (!inputName.contains(date)) {
 			String name = inputName.substring(0, inputName.lastIndexOf("."));
 			logName = String.format(RotateWriter.LOG_NAME_PATTERN, name, date);
 		}
-		return createWriter(outputFolder + "/" + logName, true);
+		if (compress)
+			logName += Compression.GZ;
+		return outputFolder + "/" + logName;
 	}
 	
 	public static Writer createWriter(String fileName, boolean append) throws IOException {
@@ -253,31 +658,46 @@ class RotateWriter {
 			LogRotator.logger.debug("Creating new file: " + file.getName());
 		else if (!append)
 			throw new RuntimeException("Output file already exists: " + fileName);
+		if (Compression.isCompressed(file))
+			return new BufferedWriter(new OutputStreamWriter(Compression.create(file, append)));
 		return new BufferedWriter(new FileWriter(file, append));
 	}
 
 	public boolean isLogStart(String line) {
-		return Properties.LOG.matcher(line).find();
+		if (!Properties.LOG_START.isLogStart(line, logMatcher)) return false;
+		// the entry started by the line gets the parse when the line is added
+		pending.parsed(logMatcher);
+		pendingLine = line;
+		return true;
+	}
+
+	/**
+	 * Takes the entry start <code>other</code> just detected in the same
+	 * line, instead of matching the line again.
+	 */
+	void logStart(RotateWriter other) {
+		pending.parsed(other.pending);
+		pendingLine = other.pendingLine;
 	}
 
+	// index sidecars aren't logs
 	public static FileFilter regularFiles = new FileFilter() {
 		@Override
 		public boolean accept(File file) {
-			return file.isFile();
+			return file.isFile() && !OffsetIndex.isIndexFile(file);
 		}
 	};
 
 	public static File checkOutput(String outFolder, boolean clean) {
 		File out = new File(outFolder);
-		if (out.exists() && out.isDirectory()) {
-			if (clean)
-				for (File f : out.listFiles(RotateWriter.regularFiles))
-					f.delete();
-		} else if (!out.exists()) {
+		// another rotator may create it between the checks
+		if (!out.exists())
 			out.mkdir();
-		} else {
+		if (!out.isDirectory())
 			throw new RuntimeException("Output is not a directory: " + outFolder);
-		}
+		if (clean)
+			for (File f : out.listFiles(RotateWriter.regularFiles))
+				f.delete();
 		return out;
 	}
 }
\ No newline at end of file
@@ -0,0 +1,294 @@
+package org.romanprotsiuk.logrotator;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Progress of a batch rotation, saved so that a rerun after a crash neither
+ * loses nor repeats output. A commit records the length of every output
+ * written since the last one and, for every input being rotated, the offset
+ * of the next entry to read, the entry before it (for duplicate checks) and
+ * any output still held back. It's taken while every rotator stands between
+ * two entries, after flushing their writers. Rotators join without waiting
+ * for a commit. Inputs rotated to the end are recorded as done.
+ * <p>
+ * On restart outputs are truncated to their committed lengths and files
+ * created since the commit are deleted; done inputs are skipped and the
+ * others resume from their offsets. Duplicate windows start out empty.
+ */
+class RotationCheckpoint {
+
+	public static final long DEFAULT_COMMIT_INTERVAL = 10000;
+
+	private static final String DONE = "done.";
+	private static final String OFFSET = "offset.";
+	private static final String PREVIOUS = "previous.";
+	private static final String INITIAL = "initial.";
+	private static final String OUTPUT = "output.";
+
+	/**
+	 * Restores the outputs to the last commit in <code>file</code>, if
+	 * there's one, and commits their state as the starting point.
+	 */
+	public static RotationCheckpoint open(File file, File outputFolder, long commitInterval) throws IOException {
+		RotationCheckpoint checkpoint = new RotationCheckpoint(file, outputFolder, commitInterval);
+		checkpoint.restore();
+		return checkpoint;
+	}
+
+	private RotationCheckpoint(File file, File outputFolder, long commitInterval) {
+		this.file = file.getAbsoluteFile();
+		this.outputFolder = outputFolder.getAbsoluteFile();
+		this.commitInterval = commitInterval;
+	}
+
+	private File file;
+	private File outputFolder;
+	private long commitInterval;
+	// rotators hold the read lock while rotating, commits take the write lock
+	private ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	private java.util.Properties state = new java.util.Properties();
+	// joined under the read lock, so by several rotators at once
+	private Set<Cursor> cursors = Collections.newSetFromMap(new ConcurrentHashMap<Cursor, Boolean>());
+	private volatile long lastCommit = 0;
+	private volatile boolean failed = false;
+
+	/**
+	 * Position of one input, advanced by the rotator reading it.
+	 */
+	class Cursor {
+		private Cursor(File input) {
+			this.key = input.getAbsolutePath();
+			this.offset = Long.parseLong(state.getProperty(OFFSET + key, "0"));
+		}
+
+		private String key;
+		private volatile long offset;
+		private RotateWriter w = null;
+		private OffsetIndex.LineReader reader = null;
+		// outputs written to since the last commit, and the one still written to
+		private Set<String> outputs = new HashSet<String>();
+
+		/**
+		 * Offset to resume reading at.
+		 */
+		public long getOffset() {
+			return offset;
+		}
+
+		public void setReader(OffsetIndex.LineReader reader) {
+			this.reader = reader;
+		}
+
+		/**
+		 * Gives <code>w</code> the entries saved with the offset and starts
+		 * taking part in commits. Rotators keep the read lock between
+		 * commits, so joining them only waits for a commit being taken.
+		 */
+		public void attach(RotateWriter w) {
+			w.setPreviousLines(state.getProperty(PREVIOUS + key));
+			String initial = state.getProperty(INITIAL + key);
+			if (initial != null)
+				w.initialLog = new StringBuilder(initial);
+			w.trackOutputs(outputs);
+			lock.readLock().lock();
+			this.w = w;
+			cursors.add(this);
+		}
+
+		/**
+		 * Marks the start of the line just read as an entry boundary: all
+		 * entries before it are written. Commits if it's time to.
+		 */
+		public void entryStart() throws IOException {
+			offset = reader.getLineStart();
+			if (System.currentTimeMillis() - lastCommit < commitInterval) return;
+			lock.readLock().unlock();
+			lock.writeLock().lock();
+			try {
+				if (System.currentTimeMillis() - lastCommit >= commitInterval)
+					commit();
+			} finally {
+				lock.readLock().lock();
+				lock.writeLock().unlock();
+			}
+		}
+
+		/**
+		 * Stops taking part in commits, once the writer is closed. A
+		 * completed input is committed as done; after a failure nothing
+		 * is committed any more, so a rerun starts from the last commit.
+		 */
+		public void close(boolean completed) throws IOException {
+			if (w == null) return;
+			lock.readLock().unlock();
+			lock.writeLock().lock();
+			try {
+				cursors.remove(this);
+				if (!completed) {
+					w = null;
+					failed = true;
+					return;
+				}
+				saveOutputs(state, outputFolder, outputs, w);
+				w = null;
+				state.remove(OFFSET + key);
+				state.remove(PREVIOUS + key);
+				state.remove(INITIAL + key);
+				state.setProperty(DONE + key, "true");
+				commit();
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+	}
+
+	public boolean isDone(File input) {
+		return state.getProperty(DONE + input.getAbsolutePath()) != null;
+	}
+
+	public Cursor cursor(File input) {
+		return new Cursor(input);
+	}
+
+	private void restore() throws IOException {
+		if (file.exists()) {
+			InputStream is = new FileInputStream(file);
+			try {
+				state.load(is);
+			} finally {
+				is.close();
+			}
+			LogRotator.logger.info("Resuming rotation from " + file.getName());
+			restoreOutputs(state, outputFolder, file);
+		}
+		saveOutputs(state, outputFolder, file);
+		lock.writeLock().lock();
+		try {
+			commit();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	// under the write lock
+	private void commit() throws IOException {
+		if (failed) return;
+		for (Cursor c : cursors) {
+			c.w.flush();
+			state.setProperty(OFFSET + c.key, String.valueOf(c.offset));
+			setOrRemove(PREVIOUS + c.key, c.w.getPreviousLines());
+			setOrRemove(INITIAL + c.key, c.w.initialLog != null ? c.w.initialLog.toString() : null);
+			saveOutputs(state, outputFolder, c.outputs, c.w);
+		}
+
+		File tmp = new File(file.getPath() + ".tmp");
+		OutputStream os = new FileOutputStream(tmp);
+		try {
+			state.store(os, "LogRotator checkpoint of " + outputFolder);
+		} finally {
+			os.close();
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		lastCommit = System.currentTimeMillis();
+	}
+
+	private void setOrRemove(String key, String value) {
+		if (value != null)
+			state.setProperty(key, value);
+		else
+			state.remove(key);
+	}
+
+	/**
+	 * Records the length of every file in <code>outputFolder</code> in
+	 * <code>state</code>, replacing the lengths recorded before.
+	 */
+	static void saveOutputs(java.util.Properties state, File outputFolder, File checkpoint) {
+		for (String key : state.stringPropertyNames())
+			if (key.startsWith(OUTPUT))
+				state.remove(key);
+		for (String name : outputs(outputFolder, checkpoint))
+			state.setProperty(OUTPUT + name, String.valueOf(new File(outputFolder, name).length()));
+	}
+
+	/**
+	 * Records the lengths of <code>outputs</code>, the paths of files in
+	 * <code>outputFolder</code> written by <code>w</code> since the last
+	 * call, in <code>state</code>. Only the output <code>w</code> still
+	 * writes to is kept in <code>outputs</code>.
+	 */
+	static void saveOutputs(java.util.Properties state, File outputFolder, Set<String> outputs, RotateWriter w) {
+		Path folder = outputFolder.getAbsoluteFile().toPath().normalize();
+		for (String fileName : outputs) {
+			File output = new File(fileName);
+			Path path = output.getAbsoluteFile().toPath().normalize();
+			if (!path.startsWith(folder) || !output.isFile()) continue;
+			String name = folder.relativize(path).toString().replace(File.separatorChar, '/');
+			state.setProperty(OUTPUT + name, String.valueOf(output.length()));
+		}
+		outputs.clear();
+		if (w.getOutputFile() != null)
+			outputs.add(w.getOutputFile());
+	}
+
+	/**
+	 * Truncates the files in <code>outputFolder</code> to the lengths
+	 * recorded in <code>state</code> and deletes those created since.
+	 */
+	static void restoreOutputs(java.util.Properties state, File outputFolder, File checkpoint) throws IOException {
+		for (String name : outputs(outputFolder, checkpoint)) {
+			File output = new File(outputFolder, name);
+			String length = state.getProperty(OUTPUT + name);
+			if (length == null) {
+				LogRotator.logger.debug("Deleting uncommitted output: " + name);
+				if (!output.delete())
+					throw new IOException("Failed deleting " + output);
+			} else if (output.length() > Long.parseLong(length)) {
+				LogRotator.logger.debug("Truncating output: " + name + " to " + length);
+				RandomAccessFile raf = new RandomAccessFile(output, "rw");
+				try {
+					raf.setLength(Long.parseLong(length));
+				} finally {
+					raf.close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Files in the output folder and its subfolders, relative to it, less
+	 * the checkpoint itself.
+	 */
+	private static List<String> outputs(File outputFolder, File checkpoint) {
+		List<String> names = new ArrayList<String>();
+		collect(outputFolder.getAbsoluteFile(), "", checkpoint.getAbsoluteFile(), names);
+		return names;
+	}
+
+	private static void collect(File dir, String prefix, File checkpoint, List<String> names) {
+		File[] files = dir.listFiles();
+		if (files == null) return;
+		for (File f : files) {
+			if (f.isDirectory())
+				collect(f, prefix + f.getName() + "/", checkpoint, names);
+			else if (!f.equals(checkpoint) && !f.getPath().equals(checkpoint.getPath() + ".tmp"))
+				names.add(prefix + f.getName());
+		}
+	}
+}
@@ -0,0 +1,198 @@
+package org.romanprotsiuk.logrotator;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Handle of a rotation submitted with
+ * {@link LogRotator#submit(String, String)} or
+ * {@link RotationJobs#submit(String)}: a future per input file and
+ * one for the whole job, progress, errors and cancellation. The job runs on
+ * an executor of its own, shut down once every file is done.
+ * <p>
+ * A failed file doesn't stop the others; its future and the job's complete
+ * exceptionally with the error, further errors are added to it as
+ * suppressed. Cancelling skips the files not started yet and stops the
+ * running ones at their next entry.
+ */
+public class RotationJob {
+
+	RotationJob(ExecutorService executor, RotationMetrics metrics) {
+		this.executor = executor;
+		this.metrics = metrics;
+		this.bytesAtStart = metrics.getBytesRead();
+	}
+
+	private ExecutorService executor;
+	private RotationMetrics metrics;
+	private long bytesAtStart;
+	private long length = 0;
+	private List<Runnable> tasks = new ArrayList<Runnable>();
+	private Map<String, FileState> files = new LinkedHashMap<String, FileState>();
+	private int remaining = 0;
+	private List<Throwable> errors = new CopyOnWriteArrayList<Throwable>();
+	private CompletableFuture<Void> result = new CompletableFuture<Void>();
+	private volatile boolean cancelled = false;
+
+	private static class FileState {
+		public CompletableFuture<Void> future = new CompletableFuture<Void>();
+		public int remaining = 0;
+		public Throwable error = null;
+		public boolean cancelled = false;
+	}
+
+	/**
+	 * Adds a task rotating <code>file</code> or a chunk of it, about
+	 * <code>length</code> bytes. Tasks start in the order they're added.
+	 */
+	void add(File file, final Runnable task, long length) {
+		final String name = file.getName();
+		FileState state = files.get(name);
+		if (state == null)
+			files.put(name, state = new FileState());
+		state.remaining++;
+		remaining++;
+		this.length += length;
+		tasks.add(new Runnable() {
+			@Override
+			public void run() {
+				if (cancelled) {
+					taskDone(name, new CancellationException());
+					return;
+				}
+				try {
+					task.run();
+					taskDone(name, null);
+				} catch (Throwable e) {
+					taskDone(name, e);
+				}
+			}
+		});
+	}
+
+	void start() {
+		if (tasks.isEmpty()) {
+			executor.shutdown();
+			result.complete(null);
+			return;
+		}
+		for (Runnable task : tasks)
+			executor.execute(task);
+		tasks = null;
+	}
+
+	private synchronized void taskDone(String name, Throwable error) {
+		if (error instanceof RuntimeException && error.getClass() == RuntimeException.class
+				&& error.getCause() instanceof IOException)
+			error = error.getCause();
+		FileState state = files.get(name);
+		if (error instanceof CancellationException) {
+			state.cancelled = true;
+		} else if (error != null) {
+			LogRotator.logger.error("Rotation of " + name + " failed", error);
+			errors.add(error);
+			if (state.error == null)
+				state.error = error;
+		}
+		if (--state.remaining == 0) {
+			if (state.error != null)
+				state.future.completeExceptionally(state.error);
+			else if (state.cancelled)
+				state.future.cancel(false);
+			else
+				state.future.complete(null);
+		}
+		if (--remaining == 0)
+			finish();
+	}
+
+	private void finish() {
+		executor.shutdown();
+		if (!errors.isEmpty()) {
+			Throwable first = errors.get(0);
+			for (Throwable e : errors.subList(1, errors.size()))
+				first.addSuppressed(e);
+			result.completeExceptionally(first);
+		} else if (cancelled)
+			result.cancel(false);
+		else
+			result.complete(null);
+	}
+
+	/**
+	 * Completes when all files are done.
+	 */
+	public CompletableFuture<Void> getResult() {
+		return result;
+	}
+
+	/**
+	 * Futures of the input files by name, in the order they are scheduled.
+	 */
+	public synchronized Map<String, CompletableFuture<Void>> getFiles() {
+		Map<String, CompletableFuture<Void>> result = new LinkedHashMap<String, CompletableFuture<Void>>();
+		for (Map.Entry<String, FileState> e : files.entrySet())
+			result.put(e.getKey(), e.getValue().future);
+		return Collections.unmodifiableMap(result);
+	}
+
+	public synchronized CompletableFuture<Void> getFile(String name) {
+		FileState state = files.get(name);
+		return state != null ? state.future : null;
+	}
+
+	/**
+	 * Counters of the rotator, shared by its jobs.
+	 */
+	public RotationMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Bytes to read, estimated for compressed files.
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	/**
+	 * Percentage read of all files.
+	 */
+	public double getProgress() {
+		if (result.isDone() && !result.isCompletedExceptionally()) return 100.0;
+		long read = metrics.getBytesRead() - bytesAtStart;
+		return length > 0 ? Math.min(100.0, 100.0 * read / length) : 0.0;
+	}
+
+	/**
+	 * Failures so far, cancellation aside.
+	 */
+	public List<Throwable> getErrors() {
+		return Collections.unmodifiableList(errors);
+	}
+
+	public void cancel() {
+		cancelled = true;
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * Waits until all files are done, throwing the job's failure.
+	 */
+	public void await() throws InterruptedException, ExecutionException {
+		result.get();
+	}
+}
@@ -0,0 +1,120 @@
+package org.romanprotsiuk.logrotator;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Several rotations of the same input done in one pass, e.g. splitting by
+ * date and extracting errors. Every job is a configured {@link LogRotator}
+ * (conditions, <code>splitByError</code>, <code>ignoreDuplicates</code>,
+ * metrics) with an output folder of its own. Each input file is read and
+ * split into entries once, first lines are matched once, and every entry
+ * is handed to all jobs, which filter and write it as they would alone.
+ * <p>
+ * Files are rotated as a whole on one thread each; chunking, pipelines and
+ * splitting on bytes apply to single jobs only.
+ */
+public class RotationJobs {
+
+	private List<LogRotator> jobs = new ArrayList<LogRotator>();
+	private List<String> outputFolders = new ArrayList<String>();
+
+	public RotationJobs add(LogRotator rotator, String outputFolder) {
+		jobs.add(rotator);
+		outputFolders.add(outputFolder);
+		return this;
+	}
+
+	public int size() {
+		return jobs.size();
+	}
+
+	public ExecutorService rotate(String inputPath) throws Exception {
+		return rotate(inputPath, true);
+	}
+
+	/**
+	 * Rotates every file of <code>inputPath</code> for all jobs. Returns
+	 * the executor running the files, null if not <code>multithread</code>;
+	 * failures of files rotated on it are logged.
+	 */
+	public ExecutorService rotate(String inputPath, boolean multithread) throws Exception {
+		ExecutorService executor = multithread ? LogRotator.getExecutor() : null;
+		for (final File file : files(inputPath)) {
+			if (multithread) {
+				queued(file);
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							rotate(file);
+						} catch (Exception e) {
+							LogRotator.logger.error("Rotation of " + file.getName() + " failed", e);
+						}
+					}
+				});
+			} else
+				rotate(file);
+		}
+		return executor;
+	}
+
+	/**
+	 * Starts rotating the files of <code>inputPath</code> for all jobs on an
+	 * executor of their own and returns a handle with a future per file,
+	 * see {@link RotationJob}. Progress is that of the first job's metrics.
+	 */
+	public RotationJob submit(String inputPath) throws IOException {
+		final RotationJob job = new RotationJob(LogRotator.getExecutor(), jobs.get(0).getMetrics());
+		for (final File file : files(inputPath)) {
+			queued(file);
+			job.add(file, new Runnable() {
+				@Override
+				public void run() {
+					try {
+						LogRotator.rotate(file, jobs, outputFolders, job);
+					} catch (IOException e) {
+						throw new RuntimeException(e);
+					}
+				}
+			}, Compression.uncompressedLength(file));
+		}
+		job.start();
+		return job;
+	}
+
+	// files of inputPath, the largest first, see LogRotator.plan
+	private File[] files(String inputPath) {
+		if (jobs.isEmpty())
+			throw new RuntimeException("No rotation jobs");
+		File in = new File(inputPath);
+		if (!in.exists()) {
+			throw new RuntimeException("Input doesn't exist: " + inputPath);
+		}
+		for (String outputFolder : outputFolders)
+			RotateWriter.checkOutput(outputFolder, false);
+
+		File[] files = in.isDirectory() ? in.listFiles(RotateWriter.regularFiles) : new File[] {in};
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				return a.length() < b.length() ? 1 : a.length() > b.length() ? -1 : 0;
+			}
+		});
+		return files;
+	}
+
+	private void queued(File file) throws IOException {
+		for (LogRotator job : jobs)
+			job.getMetrics().fileQueued(file.getName(), Compression.uncompressedLength(file));
+	}
+
+	public void rotate(File file) throws IOException {
+		LogRotator.rotate(file, jobs, outputFolders, null);
+	}
+}
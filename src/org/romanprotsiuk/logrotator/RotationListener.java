@@ -0,0 +1,19 @@
+package org.romanprotsiuk.logrotator;
+
+/**
+ * Receives rotation events, see {@link RotationMetrics#addListener}.
+ * Callbacks run on the rotating threads and on the reporting timer, so they
+ * should return quickly.
+ */
+public interface RotationListener {
+
+	void fileStarted(RotationMetrics.FileProgress file);
+
+	void fileCompleted(RotationMetrics.FileProgress file, boolean success);
+
+	/**
+	 * Called periodically while files are queued or being rotated, and once
+	 * more when all of them are done.
+	 */
+	void report(RotationMetrics metrics);
+}
@@ -0,0 +1,369 @@
+package org.romanprotsiuk.logrotator;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters of a rotation job, shared by all of its workers. Hot path
+ * counters are {@link LongAdder}s, so workers don't contend on them. Phase
+ * times cover duplicate checks (match), include/skip filtering (filter) and
+ * choosing the output plus writing the entry (write).
+ * <p>
+ * Published to JMX with {@link #register(String)} and to
+ * {@link RotationListener}s, which get per-file events and periodic reports
+ * once {@link #startReporting(long)} is called.
+ */
+public class RotationMetrics implements RotationMetricsMXBean {
+
+	public static final String DOMAIN = "org.romanprotsiuk.logrotator";
+
+	/**
+	 * Read position of one file or chunk. Only the worker rotating it
+	 * advances it.
+	 */
+	public static class FileProgress {
+		FileProgress(String name, long length) {
+			this.name = name;
+			this.length = length;
+		}
+
+		private String name;
+		private long length;
+		private volatile long read = 0;
+		private volatile long startTime = 0;
+		private volatile boolean done = false;
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * Length in bytes, estimated for compressed files.
+		 */
+		public long getLength() {
+			return length;
+		}
+
+		public long getRead() {
+			return read;
+		}
+
+		public long getPending() {
+			return Math.max(0, length - read);
+		}
+
+		public boolean isStarted() {
+			return startTime != 0;
+		}
+
+		public boolean isDone() {
+			return done;
+		}
+
+		/**
+		 * Percentage read.
+		 */
+		public double getProgress() {
+			return length > 0 ? Math.min(100.0, 100.0 * read / length) : 0.0;
+		}
+
+		/**
+		 * Estimated time left in ms, -1 if unknown.
+		 */
+		public long getEta() {
+			if (!isStarted() || read == 0) return -1;
+			long passed = System.currentTimeMillis() - startTime;
+			return Math.round(passed * ((double) getPending() / read));
+		}
+	}
+
+	private LongAdder bytesRead = new LongAdder();
+	private LongAdder entriesRead = new LongAdder();
+	private LongAdder entriesWritten = new LongAdder();
+	private LongAdder entriesFiltered = new LongAdder();
+	private LongAdder entriesSkipped = new LongAdder();
+	private LongAdder entriesDeduplicated = new LongAdder();
+	private LongAdder matchTime = new LongAdder();
+	private LongAdder filterTime = new LongAdder();
+	private LongAdder writeTime = new LongAdder();
+	private AtomicInteger openWriters = new AtomicInteger();
+	private volatile WriterPool writers = null;
+
+	private Map<String, FileProgress> files = new ConcurrentHashMap<String, FileProgress>();
+	private List<RotationListener> listeners = new CopyOnWriteArrayList<RotationListener>();
+	private volatile long started = 0;
+	private Timer timer = null;
+	private ObjectName objectName = null;
+
+	public void addListener(RotationListener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeListener(RotationListener listener) {
+		listeners.remove(listener);
+	}
+
+	void setWriterPool(WriterPool writers) {
+		this.writers = writers;
+	}
+
+	FileProgress fileQueued(String name, long length) {
+		FileProgress file = new FileProgress(name, length);
+		files.put(name, file);
+		return file;
+	}
+
+	FileProgress fileStarted(String name, long length) {
+		FileProgress file = files.get(name);
+		if (file == null || file.isStarted())
+			file = fileQueued(name, length);
+		file.startTime = System.currentTimeMillis();
+		synchronized (this) {
+			if (started == 0)
+				started = file.startTime;
+		}
+		for (RotationListener l : listeners)
+			l.fileStarted(file);
+		return file;
+	}
+
+	void fileCompleted(FileProgress file, boolean success) {
+		file.done = true;
+		files.remove(file.name, file);
+		for (RotationListener l : listeners)
+			l.fileCompleted(file, success);
+	}
+
+	/**
+	 * Counts bytes read from <code>in</code> for the file and the job.
+	 */
+	InputStream count(InputStream in, final FileProgress file) {
+		return new FilterInputStream(in) {
+			@Override
+			public int read() throws IOException {
+				int b = super.read();
+				if (b >= 0)
+					bytesRead(file, 1);
+				return b;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				int n = super.read(b, off, len);
+				if (n > 0)
+					bytesRead(file, n);
+				return n;
+			}
+		};
+	}
+
+	void bytesRead(FileProgress file, long n) {
+		if (file != null)
+			file.read += n;
+		bytesRead.add(n);
+	}
+
+	void entryRead() {
+		entriesRead.increment();
+	}
+
+	void entryWritten() {
+		entriesWritten.increment();
+	}
+
+	void entryFiltered() {
+		entriesFiltered.increment();
+	}
+
+	void entrySkipped() {
+		entriesSkipped.increment();
+	}
+
+	void entryDeduplicated() {
+		entriesDeduplicated.increment();
+	}
+
+	void matchTime(long nanos) {
+		matchTime.add(nanos);
+	}
+
+	void filterTime(long nanos) {
+		filterTime.add(nanos);
+	}
+
+	void writeTime(long nanos) {
+		writeTime.add(nanos);
+	}
+
+	void writerOpened() {
+		openWriters.incrementAndGet();
+	}
+
+	void writerClosed() {
+		openWriters.decrementAndGet();
+	}
+
+	@Override
+	public long getBytesRead() {
+		return bytesRead.sum();
+	}
+
+	@Override
+	public long getEntriesRead() {
+		return entriesRead.sum();
+	}
+
+	@Override
+	public long getEntriesWritten() {
+		return entriesWritten.sum();
+	}
+
+	@Override
+	public long getEntriesFiltered() {
+		return entriesFiltered.sum();
+	}
+
+	@Override
+	public long getEntriesSkipped() {
+		return entriesSkipped.sum();
+	}
+
+	@Override
+	public long getEntriesDeduplicated() {
+		return entriesDeduplicated.sum();
+	}
+
+	@Override
+	public long getMatchTime() {
+		return TimeUnit.NANOSECONDS.toMillis(matchTime.sum());
+	}
+
+	@Override
+	public long getFilterTime() {
+		return TimeUnit.NANOSECONDS.toMillis(filterTime.sum());
+	}
+
+	@Override
+	public long getWriteTime() {
+		return TimeUnit.NANOSECONDS.toMillis(writeTime.sum());
+	}
+
+	@Override
+	public double getBytesReadPerSecond() {
+		return perSecond(getBytesRead());
+	}
+
+	@Override
+	public double getEntriesReadPerSecond() {
+		return perSecond(getEntriesRead());
+	}
+
+	private double perSecond(long count) {
+		long passed = started != 0 ? System.currentTimeMillis() - started : 0;
+		return passed > 0 ? count * 1000.0 / passed : 0.0;
+	}
+
+	@Override
+	public int getOpenWriters() {
+		WriterPool pool = writers;
+		return openWriters.get() + (pool != null ? pool.getOpenCount() : 0);
+	}
+
+	@Override
+	public int getActiveFiles() {
+		int active = 0;
+		for (FileProgress file : files.values())
+			if (file.isStarted())
+				active++;
+		return active;
+	}
+
+	@Override
+	public int getQueuedFiles() {
+		return files.size() - getActiveFiles();
+	}
+
+	@Override
+	public Map<String, Long> getPendingBytes() {
+		Map<String, Long> result = new TreeMap<String, Long>();
+		for (FileProgress file : files.values())
+			result.put(file.name, file.getPending());
+		return result;
+	}
+
+	/**
+	 * Queued and active files, ordered by name.
+	 */
+	public Map<String, FileProgress> getFiles() {
+		return new TreeMap<String, FileProgress>(files);
+	}
+
+	/**
+	 * Reports to the listeners every <code>interval</code> ms until no
+	 * files are left, on a daemon timer.
+	 */
+	public synchronized void startReporting(long interval) {
+		stopReporting();
+		timer = new Timer("logrotator-metrics", true);
+		final Timer t = timer;
+		timer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				for (RotationListener l : listeners)
+					l.report(RotationMetrics.this);
+				if (files.isEmpty())
+					t.cancel();
+			}
+		}, interval, interval);
+	}
+
+	public synchronized void stopReporting() {
+		if (timer == null) return;
+		timer.cancel();
+		timer = null;
+	}
+
+	/**
+	 * Registers the metrics with the platform MBean server as
+	 * <code>org.romanprotsiuk.logrotator:type=RotationMetrics,name=...</code>.
+	 */
+	public synchronized ObjectName register(String name) {
+		try {
+			unregister();
+			ObjectName on = new ObjectName(DOMAIN + ":type=RotationMetrics,name=" + ObjectName.quote(name));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, on);
+			objectName = on;
+			return on;
+		} catch (JMException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	public synchronized void unregister() {
+		if (objectName == null) return;
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if (server.isRegistered(objectName))
+				server.unregisterMBean(objectName);
+			objectName = null;
+		} catch (JMException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
@@ -0,0 +1,43 @@
+package org.romanprotsiuk.logrotator;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link RotationMetrics}. Times are in milliseconds, sizes in
+ * (uncompressed) bytes, rates are averages since the first file started.
+ */
+public interface RotationMetricsMXBean {
+
+	long getBytesRead();
+
+	long getEntriesRead();
+
+	long getEntriesWritten();
+
+	long getEntriesFiltered();
+
+	long getEntriesSkipped();
+
+	long getEntriesDeduplicated();
+
+	long getMatchTime();
+
+	long getFilterTime();
+
+	long getWriteTime();
+
+	double getBytesReadPerSecond();
+
+	double getEntriesReadPerSecond();
+
+	int getOpenWriters();
+
+	int getActiveFiles();
+
+	int getQueuedFiles();
+
+	/**
+	 * Bytes still to be read per queued or active file (or chunk).
+	 */
+	Map<String, Long> getPendingBytes();
+}
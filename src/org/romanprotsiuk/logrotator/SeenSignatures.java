@@ -0,0 +1,211 @@
+package org.romanprotsiuk.logrotator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Error signatures (see {@link DuplicateIndex}) seen in any file and any
+ * run, in a Bloom filter sized for <code>expected</code> signatures at a
+ * false positive rate of <code>falsePositives</code>, plus a HyperLogLog
+ * estimating how many distinct ones there were. Memory and the saved file
+ * are fixed in size, about 1.8 MB for the defaults; a new signature is
+ * taken for a known one at the false positive rate, which grows once there
+ * are more than <code>expected</code> of them.
+ * <p>
+ * Shared by all workers of a job without locks: bits and registers are set
+ * with compare-and-set, so two workers adding the same new signature at
+ * once may both see it as new. Saving takes a snapshot as of then.
+ */
+class SeenSignatures {
+
+	public static final long DEFAULT_EXPECTED = 1000000;
+	public static final double DEFAULT_FALSE_POSITIVES = 0.001;
+
+	private static final int MAGIC = 0x4C525353;
+	// 2 added the severity to signatures
+	private static final int VERSION = 2;
+	// 2^14 registers, a standard error of 0.8%
+	private static final int PRECISION = 14;
+	private static final int REGISTERS = 1 << PRECISION;
+
+	/**
+	 * Loads the signatures saved in <code>file</code>, if it exists, in
+	 * the size they were saved with.
+	 */
+	public static SeenSignatures open(File file, long expected, double falsePositives) throws IOException {
+		if (!file.exists())
+			return new SeenSignatures(file, expected, falsePositives);
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if (in.readInt() != MAGIC)
+				throw new IOException("Not a signatures file: " + file);
+			if (in.readInt() != VERSION) {
+				LogRotator.logger.warn("Signatures in " + file.getName() + " are of an older version, starting anew");
+				return new SeenSignatures(file, expected, falsePositives);
+			}
+			int hashes = in.readInt();
+			long[] bits = new long[in.readInt()];
+			for (int i = 0; i < bits.length; i++)
+				bits[i] = in.readLong();
+			SeenSignatures seen = new SeenSignatures(file, hashes, bits);
+			for (int i = 0; i < REGISTERS; i++)
+				seen.registers.set(i, in.readUnsignedByte());
+			LogRotator.logger.info("Loaded about " + seen.getDistinct() + " known signatures from " + file.getName());
+			return seen;
+		} finally {
+			in.close();
+		}
+	}
+
+	private SeenSignatures(File file, long expected, double falsePositives) {
+		if (expected < 1 || falsePositives <= 0 || falsePositives >= 1)
+			throw new RuntimeException("Bad signature filter size: " + expected + ", " + falsePositives);
+		this.file = file;
+		double ln2 = Math.log(2);
+		long size = (long) Math.ceil(-expected * Math.log(falsePositives) / (ln2 * ln2));
+		this.hashes = Math.max(1, (int) Math.round((double) size / expected * ln2));
+		this.bits = new AtomicLongArray((int) Math.min(Integer.MAX_VALUE - 8, (size + 63) / 64));
+		this.size = bits.length() * 64L;
+	}
+
+	private SeenSignatures(File file, int hashes, long[] bits) {
+		this.file = file;
+		this.hashes = hashes;
+		this.bits = new AtomicLongArray(bits);
+		this.size = bits.length * 64L;
+	}
+
+	private File file;
+	private int hashes;
+	private AtomicLongArray bits;
+	private long size;
+	private AtomicIntegerArray registers = new AtomicIntegerArray(REGISTERS);
+	private AtomicLong added = new AtomicLong();
+	private long saved = 0;
+
+	/**
+	 * Whether <code>signature</code> was recorded, or is taken for a
+	 * recorded one.
+	 */
+	public boolean contains(long signature) {
+		long h = mix(signature);
+		long h1 = h >>> 32;
+		long h2 = (h & 0xffffffffL) | 1;
+		for (int i = 0; i < hashes; i++) {
+			long bit = ((h1 + i * h2) & Long.MAX_VALUE) % size;
+			if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Records <code>signature</code>, telling whether it's new.
+	 */
+	public boolean add(long signature) {
+		long h = mix(signature);
+		count(h);
+		// double hashing, bit i at h1 + i * h2
+		long h1 = h >>> 32;
+		long h2 = (h & 0xffffffffL) | 1;
+		boolean isNew = false;
+		for (int i = 0; i < hashes; i++) {
+			long bit = ((h1 + i * h2) & Long.MAX_VALUE) % size;
+			int word = (int) (bit >>> 6);
+			long mask = 1L << bit;
+			long value;
+			while (((value = bits.get(word)) & mask) == 0) {
+				if (bits.compareAndSet(word, value, value | mask)) {
+					isNew = true;
+					break;
+				}
+			}
+		}
+		if (isNew)
+			added.incrementAndGet();
+		return isNew;
+	}
+
+	private void count(long h) {
+		int register = (int) (h >>> (64 - PRECISION));
+		int rank = Long.numberOfLeadingZeros((h << PRECISION) | (1L << (PRECISION - 1))) + 1;
+		int value;
+		while ((value = registers.get(register)) < rank)
+			if (registers.compareAndSet(register, value, rank))
+				break;
+	}
+
+	/**
+	 * Estimated number of distinct signatures seen.
+	 */
+	public long getDistinct() {
+		double sum = 0;
+		int zeros = 0;
+		for (int i = 0; i < REGISTERS; i++) {
+			int r = registers.get(i);
+			sum += 1.0 / (1L << r);
+			if (r == 0)
+				zeros++;
+		}
+		double alpha = 0.7213 / (1 + 1.079 / REGISTERS);
+		double estimate = alpha * REGISTERS * REGISTERS / sum;
+		if (estimate <= 2.5 * REGISTERS && zeros > 0)
+			estimate = REGISTERS * Math.log((double) REGISTERS / zeros);
+		return Math.round(estimate);
+	}
+
+	/**
+	 * Signatures new to the filter since it was loaded.
+	 */
+	public long getAdded() {
+		return added.get();
+	}
+
+	/**
+	 * Writes the filter to its file if signatures were added since the
+	 * last save, replacing the file at once.
+	 */
+	public synchronized void save() throws IOException {
+		long count = added.get();
+		if (count == saved && file.exists()) return;
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(hashes);
+			out.writeInt(bits.length());
+			for (int i = 0; i < bits.length(); i++)
+				out.writeLong(bits.get(i));
+			for (int i = 0; i < REGISTERS; i++)
+				out.writeByte(registers.get(i));
+		} finally {
+			out.close();
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		saved = count;
+		LogRotator.logger.debug("Saved " + count + " new signatures to " + file.getName() + ", about "
+				+ getDistinct() + " known");
+	}
+
+	// spreads FNV hashes over all 64 bits, the MurmurHash3 finalizer
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
@@ -0,0 +1,132 @@
+package org.romanprotsiuk.logrotator;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounded LRU pool of open output writers keyed by file name. Used in
+ * error-splitting mode, where entries keep switching between a few hundred
+ * output files, so that an entry costs a buffered write instead of
+ * open/write/close. The pool is shared by all rotators of a job, so every
+ * entry is written under the pool lock and entries from different inputs
+ * never interleave. Writers are closed on eviction, when a user releases
+ * the pool (those of the files it wrote to, so that they're complete on
+ * disk as soon as it's done with them, as with writers of its own) and
+ * when the last user releases it.
+ */
+class WriterPool {
+
+	public static final int DEFAULT_MAX_OPEN = 256;
+
+	public WriterPool() {
+		this(DEFAULT_MAX_OPEN);
+	}
+
+	public WriterPool(final int maxOpen) {
+		if (maxOpen < 1)
+			throw new RuntimeException("Open writers limit must be positive: " + maxOpen);
+		this.maxOpen = maxOpen;
+		this.writers = new LinkedHashMap<String, Writer>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Writer> eldest) {
+				if (size() <= maxOpen) return false;
+				close(eldest.getValue());
+				evictions++;
+				return true;
+			}
+		};
+	}
+
+	private int maxOpen;
+	private LinkedHashMap<String, Writer> writers;
+	private int users = 0;
+	private long evictions = 0;
+
+	public int getMaxOpen() {
+		return maxOpen;
+	}
+
+	public synchronized int getOpenCount() {
+		return writers.size();
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	public synchronized void acquire() {
+		users++;
+	}
+
+	public synchronized void release() {
+		if (--users <= 0) {
+			users = 0;
+			closeAll();
+		}
+	}
+
+	/**
+	 * Closes the writers of <code>fileNames</code> and releases the pool.
+	 * Other users writing to the same files later reopen them for append.
+	 */
+	public synchronized void release(Collection<String> fileNames) {
+		List<Writer> open = new ArrayList<Writer>();
+		for (String fileName : fileNames) {
+			Writer w = writers.remove(fileName);
+			if (w != null)
+				open.add(w);
+		}
+		try {
+			close(open);
+		} finally {
+			release();
+		}
+	}
+
+	public synchronized void write(String fileName, String lines) throws IOException {
+		Writer w = writers.get(fileName);
+		if (w == null) {
+			w = RotateWriter.createWriter(fileName, true);
+			writers.put(fileName, w);
+		}
+		w.write(lines);
+	}
+
+	public synchronized void flushAll() throws IOException {
+		for (Writer w : writers.values())
+			w.flush();
+	}
+
+	public synchronized void closeAll() {
+		List<Writer> open = new ArrayList<Writer>(writers.values());
+		writers.clear();
+		close(open);
+	}
+
+	private static void close(List<Writer> open) {
+		RuntimeException error = null;
+		for (Writer w : open)
+			try {
+				close(w);
+			} catch (RuntimeException e) {
+				error = e;
+			}
+		if (error != null)
+			throw error;
+	}
+
+	private static void close(Writer w) {
+		try {
+			w.close();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}